@@ -0,0 +1,177 @@
+package com.example.radha.bitmapprocessing;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * In-memory LRU cache of decoded bitmaps. The cache is bounded by the total
+ * pixel bytes of its entries ({@link Bitmap#getByteCount()}) rather than by
+ * the number of entries, so a few large images cannot push the heap over its
+ * limit.
+ */
+public class BitmapMemoryCache {
+	private static final String TAG = "BitmapMemoryCache";
+
+	/** Default share of the VM heap given to the shared cache. */
+	private static final int DEFAULT_HEAP_FRACTION = 8;
+
+	private static BitmapMemoryCache sInstance;
+
+	private final LruCache<String, Bitmap> mCache;
+	/** Bitmaps currently referenced by the cache, by identity. */
+	private final Set<Bitmap> mCached = Collections.synchronizedSet(Collections
+			.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>()));
+
+	/**
+	 * @param maxBytes
+	 *            upper bound of the pixel bytes held by the cache
+	 */
+	public BitmapMemoryCache(int maxBytes) {
+		mCache = new LruCache<String, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(String key, Bitmap value) {
+				return value.getByteCount();
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, String key,
+					Bitmap oldValue, Bitmap newValue) {
+				if (oldValue != newValue) {
+					mCached.remove(oldValue);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the cache shared by the {@link BitmapUtil} decode methods,
+	 * sized to an eighth of the maximum heap.
+	 */
+	public static synchronized BitmapMemoryCache getInstance() {
+		if (sInstance == null) {
+			long maxMemory = Runtime.getRuntime().maxMemory();
+			sInstance = new BitmapMemoryCache(
+					(int) Math.min(Integer.MAX_VALUE, maxMemory / DEFAULT_HEAP_FRACTION));
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Builds a cache key for a decode of a local file. The file modification
+	 * time is part of the key so an edited file is decoded again.
+	 *
+	 * @param path
+	 *            source file path
+	 * @param width
+	 *            requested width, or 0 when the decode is not sized
+	 * @param height
+	 *            requested height, or 0 when the decode is not sized
+	 * @param config
+	 *            pixel config of the result
+	 * @param mode
+	 *            name of the decode strategy producing the bitmap
+	 * @return key, or null when the path is null
+	 */
+	public static String key(String path, int width, int height,
+			Config config, String mode) {
+		if (path == null) {
+			return null;
+		}
+		long lastModified = new File(path).lastModified();
+		return path + '@' + lastModified + '#' + width + 'x' + height + ':'
+				+ config + ':' + mode;
+	}
+
+	/**
+	 * Builds a cache key for a decode of a content uri. File uris are keyed by
+	 * their path so the modification time is taken into account.
+	 */
+	public static String key(Uri uri, int width, int height, Config config,
+			String mode) {
+		if (uri == null) {
+			return null;
+		}
+		if ("file".equals(uri.getScheme())) {
+			return key(uri.getPath(), width, height, config, mode);
+		}
+		return uri.toString() + '#' + width + 'x' + height + ':' + config
+				+ ':' + mode;
+	}
+
+	/**
+	 * @return cached bitmap for the key, or null when absent or recycled by a
+	 *         caller in the meantime
+	 */
+	public Bitmap get(String key) {
+		if (key == null) {
+			return null;
+		}
+		Bitmap bitmap = mCache.get(key);
+		if (bitmap != null && bitmap.isRecycled()) {
+			mCache.remove(key);
+			return null;
+		}
+		return bitmap;
+	}
+
+	public void put(String key, Bitmap bitmap) {
+		if (key == null || bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		mCached.add(bitmap);
+		mCache.put(key, bitmap);
+	}
+
+	/**
+	 * @return true if the bitmap is held by the cache and must therefore be
+	 *         neither recycled nor reused
+	 */
+	public boolean contains(Bitmap bitmap) {
+		return bitmap != null && mCached.contains(bitmap);
+	}
+
+	public void remove(String key) {
+		if (key != null) {
+			mCache.remove(key);
+		}
+	}
+
+	public void clear() {
+		mCache.evictAll();
+	}
+
+	/**
+	 * Evicts the least recently used bitmaps until the cache holds at most
+	 * the given number of bytes. The limit stays as it was, so the cache can
+	 * grow back once memory is available again.
+	 */
+	public void trimToSize(int maxBytes) {
+		mCache.trimToSize(maxBytes);
+	}
+
+	/**
+	 * @return pixel bytes currently held by the cache
+	 */
+	public int size() {
+		return mCache.size();
+	}
+
+	public int maxSize() {
+		return mCache.maxSize();
+	}
+
+	@Override
+	public String toString() {
+		return TAG + "[size=" + mCache.size() + ", maxSize=" + mCache.maxSize()
+				+ ", hits=" + mCache.hitCount() + ", misses="
+				+ mCache.missCount() + ", evictions=" + mCache.evictionCount()
+				+ "]";
+	}
+}
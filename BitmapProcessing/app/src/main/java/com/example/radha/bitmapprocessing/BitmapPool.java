@@ -0,0 +1,262 @@
+package com.example.radha.bitmapprocessing;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Pool of mutable bitmaps that are no longer displayed, bucketed by width,
+ * height and config. Decodes reuse them through
+ * {@link BitmapFactory.Options#inBitmap} and the transform methods of
+ * {@link BitmapUtil} draw into them instead of allocating a new pixel
+ * buffer for every result.
+ * <p>
+ * The pool is bounded by the total pixel bytes of the bitmaps it holds and
+ * drops the least recently added bitmap first. Hit and miss counts are kept
+ * so the budget can be tuned.
+ */
+public class BitmapPool {
+	private static final String TAG = "BitmapPool";
+
+	/** Default share of the VM heap given to the shared pool. */
+	private static final int DEFAULT_HEAP_FRACTION = 8;
+
+	private static BitmapPool sInstance;
+
+	private final Map<String, LinkedList<Bitmap>> mBuckets = new HashMap<String, LinkedList<Bitmap>>();
+	/** Every pooled bitmap, eldest first, for eviction. */
+	private final LinkedList<Bitmap> mLru = new LinkedList<Bitmap>();
+	private int mMaxSize;
+	private int mSize;
+
+	private int mHitCount;
+	private int mMissCount;
+	private int mPutCount;
+	private int mEvictionCount;
+
+	/**
+	 * @param maxBytes
+	 *            upper bound of the pixel bytes held by the pool
+	 */
+	public BitmapPool(int maxBytes) {
+		mMaxSize = maxBytes;
+	}
+
+	/**
+	 * Returns the pool shared by the {@link BitmapUtil} methods, sized to an
+	 * eighth of the maximum heap.
+	 */
+	public static synchronized BitmapPool getInstance() {
+		if (sInstance == null) {
+			long maxMemory = Runtime.getRuntime().maxMemory();
+			sInstance = new BitmapPool((int) Math.min(Integer.MAX_VALUE,
+					maxMemory / DEFAULT_HEAP_FRACTION));
+		}
+		return sInstance;
+	}
+
+	private static String bucketKey(int width, int height, Config config) {
+		return width + "x" + height + ":" + config;
+	}
+
+	private static int byteCount(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return bitmap.getAllocationByteCount();
+		}
+		return bitmap.getByteCount();
+	}
+
+	private static int bytesPerPixel(Config config) {
+		if (config == Config.ALPHA_8) {
+			return 1;
+		} else if (config == Config.RGB_565 || config == Config.ARGB_4444) {
+			return 2;
+		}
+		return 4;
+	}
+
+	/**
+	 * Returns a pooled bitmap of exactly the given size and config, cleared
+	 * to transparent.
+	 *
+	 * @return pooled bitmap or null on a miss
+	 */
+	public Bitmap get(int width, int height, Config config) {
+		Bitmap bitmap = getDirty(width, height, config);
+		if (bitmap != null) {
+			bitmap.eraseColor(Color.TRANSPARENT);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Same as {@link #get(int, int, Config)} without clearing the pixels, for
+	 * callers that overwrite every pixel anyway.
+	 */
+	public synchronized Bitmap getDirty(int width, int height, Config config) {
+		LinkedList<Bitmap> bucket = mBuckets.get(bucketKey(width, height,
+				config));
+		if (bucket == null || bucket.isEmpty()) {
+			mMissCount++;
+			return null;
+		}
+		Bitmap bitmap = bucket.removeLast();
+		mLru.remove(bitmap);
+		mSize -= byteCount(bitmap);
+		mHitCount++;
+		return bitmap;
+	}
+
+	/**
+	 * Returns a pooled bitmap of the given size and config, allocating a new
+	 * one on a miss.
+	 */
+	public Bitmap getOrCreate(int width, int height, Config config) {
+		Bitmap bitmap = get(width, height, config);
+		if (bitmap == null) {
+			bitmap = Bitmap.createBitmap(width, height, config);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Hands a bitmap back to the pool. Bitmaps that cannot be reused, i.e.
+	 * immutable ones or ones larger than the whole pool, are recycled instead.
+	 * The caller must not touch the bitmap afterwards.
+	 */
+	public void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		int size = byteCount(bitmap);
+		if (!bitmap.isMutable() || size > mMaxSize) {
+			bitmap.recycle();
+			return;
+		}
+		synchronized (this) {
+			String key = bucketKey(bitmap.getWidth(), bitmap.getHeight(),
+					bitmap.getConfig());
+			LinkedList<Bitmap> bucket = mBuckets.get(key);
+			if (bucket == null) {
+				bucket = new LinkedList<Bitmap>();
+				mBuckets.put(key, bucket);
+			}
+			bucket.addLast(bitmap);
+			mLru.addLast(bitmap);
+			mSize += size;
+			mPutCount++;
+			trimToSize(mMaxSize);
+		}
+	}
+
+	/**
+	 * Points {@link BitmapFactory.Options#inBitmap} at a pooled bitmap the
+	 * decode can write into, if there is one. Must be called after a bounds
+	 * pass, once {@code outWidth}, {@code outHeight} and {@code inSampleSize}
+	 * are known. Also marks the decode as mutable, which reuse requires.
+	 */
+	public synchronized void addInBitmapOptions(BitmapFactory.Options options) {
+		options.inMutable = true;
+		Config config = options.inPreferredConfig != null ? options.inPreferredConfig
+				: Config.ARGB_8888;
+		int sampleSize = Math.max(1, options.inSampleSize);
+		Bitmap candidate = null;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			// any bitmap with a large enough allocation can be reconfigured
+			int width = (options.outWidth + sampleSize - 1) / sampleSize;
+			int height = (options.outHeight + sampleSize - 1) / sampleSize;
+			long needed = (long) width * height * bytesPerPixel(config);
+			for (Bitmap bitmap : mLru) {
+				if (bitmap.getConfig() == config
+						&& bitmap.getAllocationByteCount() >= needed
+						&& (candidate == null || bitmap
+								.getAllocationByteCount() < candidate
+								.getAllocationByteCount())) {
+					candidate = bitmap;
+				}
+			}
+			if (candidate != null) {
+				mBuckets.get(
+						bucketKey(candidate.getWidth(), candidate.getHeight(),
+								candidate.getConfig())).remove(candidate);
+				mLru.remove(candidate);
+				mSize -= byteCount(candidate);
+				mHitCount++;
+			} else {
+				mMissCount++;
+			}
+		} else if (sampleSize == 1) {
+			// older releases only reuse bitmaps of the exact size
+			candidate = getDirty(options.outWidth, options.outHeight, config);
+		}
+		options.inBitmap = candidate;
+	}
+
+	/**
+	 * Drops the eldest bitmaps until the pool holds at most the given number
+	 * of bytes.
+	 */
+	public synchronized void trimToSize(int maxBytes) {
+		Iterator<Bitmap> it = mLru.iterator();
+		while (mSize > maxBytes && it.hasNext()) {
+			Bitmap eldest = it.next();
+			it.remove();
+			mBuckets.get(
+					bucketKey(eldest.getWidth(), eldest.getHeight(),
+							eldest.getConfig())).remove(eldest);
+			mSize -= byteCount(eldest);
+			mEvictionCount++;
+			eldest.recycle();
+		}
+	}
+
+	public synchronized void setMaxSize(int maxBytes) {
+		mMaxSize = maxBytes;
+		trimToSize(maxBytes);
+	}
+
+	public void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * @return pixel bytes currently held by the pool
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public synchronized int maxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized int hitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int missCount() {
+		return mMissCount;
+	}
+
+	public synchronized int putCount() {
+		return mPutCount;
+	}
+
+	public synchronized int evictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return TAG + "[size=" + mSize + ", maxSize=" + mMaxSize + ", hits="
+				+ mHitCount + ", misses=" + mMissCount + ", puts=" + mPutCount
+				+ ", evictions=" + mEvictionCount + "]";
+	}
+}
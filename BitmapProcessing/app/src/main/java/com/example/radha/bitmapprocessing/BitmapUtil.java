@@ -1,38 +1,172 @@
 package com.example.radha.bitmapprocessing;
 
-import android.content.ContentResolver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.database.Cursor;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.PorterDuff.Mode;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.ExifInterface;
 import android.net.Uri;
-import android.os.Environment;
-import android.provider.MediaStore;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
+import com.example.radha.bitmapprocessing.kernel.Orientation;
+import com.example.radha.bitmapprocessing.kernel.PixelBuffer;
+import com.example.radha.bitmapprocessing.kernel.Resampler;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 
 public class BitmapUtil {
+	private static final String TAG = "BitmapUtil";
+
+	private static final BitmapMemoryCache sMemoryCache = BitmapMemoryCache
+			.getInstance();
+	private static final BitmapPool sBitmapPool = BitmapPool.getInstance();
+	private static volatile DecodeMetrics sMetrics = new DecodeHistogram();
+
+	/** Decode at full size. */
+	static final int SAMPLE_NONE = 0;
+	/** Sample with {@link #calculateInSampleSize} to fit the target size. */
+	static final int SAMPLE_FIT = 1;
+	/** Halve while both sides stay at or above the smaller target side. */
+	static final int SAMPLE_POWER_OF_TWO = 2;
+	/** Halve once when either side exceeds {@link #LARGE_IMAGE_SIZE}. */
+	static final int SAMPLE_HALVE_LARGE = 3;
+
+	private static final int LARGE_IMAGE_SIZE = 1000;
+
+	/** Keep {@link Config#ARGB_8888} and only sample down to fit a budget. */
+	public static final int QUALITY_HIGH = 0;
+	/**
+	 * Use {@link Config#RGB_565} for opaque images when that avoids sampling
+	 * down further.
+	 */
+	public static final int QUALITY_BALANCED = 1;
+	/** Use {@link Config#RGB_565} for every opaque image. */
+	public static final int QUALITY_LOW = 2;
+
+	/** {@link Bitmap#createScaledBitmap} without filtering, the fastest. */
+	public static final int SCALE_NEAREST = 0;
+	/** Parallel bilinear interpolation, see {@link Resampler#scaleBilinear}. */
+	public static final int SCALE_BILINEAR = 1;
+	/**
+	 * Parallel area average, free of aliasing when shrinking a lot, see
+	 * {@link Resampler#scaleAreaAverage}.
+	 */
+	public static final int SCALE_AREA_AVERAGE = 2;
+
+	/** Pixels turned upright per strip written into the result bitmap. */
+	private static final int UPRIGHT_STRIP_PIXELS = 256 * 1024;
+
+	/**
+	 * How much smaller than the target a coarse preview is decoded when the
+	 * file has no EXIF thumbnail.
+	 */
+	private static final int PREVIEW_DIVISOR = 4;
+
+	/**
+	 * How often a decode that ran out of memory retries at twice the sample
+	 * size before it lowers the config.
+	 */
+	private static final int MAX_SAMPLE_RETRIES = 2;
+
+	/** Fit like {@link #fitToViewByScale}: full width, centered vertically. */
+	public static final int FIT_BY_SCALE = 0;
+	/** Fit like {@link #fitToViewByRect}: whole image, centered. */
+	public static final int FIT_BY_RECT = 1;
+
+	/**
+	 * How much of the file head is kept buffered so the stream can be rewound
+	 * after the bounds pass. Large enough for the EXIF segment including its
+	 * embedded thumbnail, which precedes the image header.
+	 */
+	private static final int HEADER_MARK_LIMIT = 256 * 1024;
+
+	/**
+	 * Installs the listener that every entry point reports its phase
+	 * timings, cache lookups, decodes and failures to. A
+	 * {@link DecodeHistogram} is installed by default.
+	 *
+	 * @param metrics
+	 *            listener, or null to stop measuring
+	 */
+	public static void setDecodeMetrics(DecodeMetrics metrics) {
+		sMetrics = metrics;
+	}
+
+	/**
+	 * @return the installed listener, or null when nothing is measured
+	 */
+	public static DecodeMetrics getDecodeMetrics() {
+		return sMetrics;
+	}
+
+	/**
+	 * Looks a bitmap up in the memory cache and reports the outcome.
+	 */
+	private static Bitmap cachedBitmap(String cacheKey, DecodeTrace trace) {
+		Bitmap bitmap = sMemoryCache.get(cacheKey);
+		trace.cacheLookup(DecodeMetrics.CACHE_MEMORY, bitmap != null);
+		return bitmap;
+	}
+
+	/**
+	 * Caches a decode in memory unless it ran out of memory and had to lower
+	 * its quality, so the stand-in does not outlive the memory pressure.
+	 */
+	private static void cache(String cacheKey, Bitmap bitmap,
+			DecodeTrace trace) {
+		if (!trace.isDegraded()) {
+			sMemoryCache.put(cacheKey, bitmap);
+		}
+	}
+
+	/**
+	 * Looks a bitmap up in the disk cache, promoting a hit to the memory
+	 * cache, and reports the outcome.
+	 */
+	private static Bitmap diskCachedBitmap(DiskBitmapCache diskCache,
+			String cacheKey, DecodeTrace trace) {
+		Bitmap bitmap = diskCache.get(cacheKey);
+		trace.cacheLookup(DecodeMetrics.CACHE_DISK, bitmap != null);
+		if (bitmap != null) {
+			sMemoryCache.put(cacheKey, bitmap);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Hands a bitmap the transform created itself, such as a decoded
+	 * intermediate, back to the bitmap pool for reuse. Never pass a bitmap
+	 * that came from the caller or from the memory cache: it may still be
+	 * drawn, even after the cache evicted it.
+	 */
+	private static void release(Bitmap bitmap) {
+		if (bitmap != null && !sMemoryCache.contains(bitmap)) {
+			sBitmapPool.put(bitmap);
+		}
+	}
+
 	/**
 	 * This method resolves original file path from given uri.
 	 * 
@@ -41,23 +175,8 @@ public class BitmapUtil {
 	 * @return file path
 	 */
 	public static String getRealPathFromURI(Context context, Uri contentUri) {
-		Cursor cursor = null;
-		try {
-			String[] proj = { MediaStore.Images.ImageColumns.DATA };
-			cursor = context.getContentResolver().query(contentUri, proj, null,
-					null, null);
-			if (cursor == null) {
-				return contentUri.getPath();
-			}
-			int column_index = cursor
-					.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.DATA);
-			cursor.moveToFirst();
-			return cursor.getString(column_index);
-		} finally {
-			if (cursor != null) {
-				cursor.close();
-			}
-		}
+		String path = UriPathResolver.getInstance(context).resolve(contentUri);
+		return path != null ? path : contentUri.getPath();
 	}
 
 	/**
@@ -73,86 +192,81 @@ public class BitmapUtil {
 	 */
 	public static Bitmap getBitmap(Uri pathUri, Context ctx) {
 		Uri uri = pathUri;
-		InputStream in = null;
-		Bitmap bitmap = null;
+		String cacheKey = BitmapMemoryCache.key(uri, 0, 0, Config.ARGB_8888,
+				"sample4-rotated");
+		DecodeTrace trace = new DecodeTrace("getBitmap");
+		Bitmap bitmap = cachedBitmap(cacheKey, trace);
+		if (bitmap != null) {
+			return bitmap;
+		}
 
+		InputStream in = null;
 		try {
-
-			in = ctx.getContentResolver().openInputStream(uri);
-			File file = new File(Environment.getExternalStorageDirectory()
-					+ File.separator + "tempfile.tmp");
-			// write the inputStream to a FileOutputStream
-			OutputStream outputStream = new FileOutputStream(file);
-
-			int read = 0;
-			byte[] bytes = new byte[1024];
-
-			int angle = 0;
+			in = openBuffered(ctx, uri);
+			trace.lap(DecodeMetrics.PHASE_OPEN);
+			in.mark(HEADER_MARK_LIMIT);
+			int orientation = ExifInterface.ORIENTATION_NORMAL;
 			try {
-
-				while ((read = in.read(bytes)) != -1) {
-					outputStream.write(bytes, 0, read);
-				}
-
-				ExifInterface exif = new ExifInterface(file.getAbsolutePath());
-				int orientation = exif.getAttributeInt(
-						ExifInterface.TAG_ORIENTATION,
-						ExifInterface.ORIENTATION_NORMAL);
-
-				if (orientation == ExifInterface.ORIENTATION_ROTATE_90)
-					angle = 90;
-				else if (orientation == ExifInterface.ORIENTATION_ROTATE_180)
-					angle = 180;
-				else if (orientation == ExifInterface.ORIENTATION_ROTATE_270)
-					angle = 270;
-
+				orientation = ExifOrientation.read(in);
 			} catch (IOException e) {
-				Log.e("path", e.toString());
-				e.printStackTrace();
-
-			} catch (IllegalArgumentException e) {
-				// catches error while loading synced images metadata
-				e.printStackTrace();
-			} finally {
-				if (outputStream != null) {
-					try {
-						outputStream.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
+				// treat unreadable metadata as upright
 			}
+			in = rewind(in, ctx, uri);
+			trace.lap(DecodeMetrics.PHASE_EXIF);
+			in.mark(HEADER_MARK_LIMIT);
+
 			BitmapFactory.Options options = new BitmapFactory.Options();
 			options.inJustDecodeBounds = true;
-			bitmap = BitmapFactory.decodeStream(in, null, options);
-
-			BitmapFactory.Options newImageOptions = new BitmapFactory.Options();
-			if (options.outHeight > 1000 || options.outWidth > 1000) {
-				newImageOptions.inSampleSize = 4;
+			BitmapFactory.decodeStream(in, null, options);
+			in = rewind(in, ctx, uri);
+			trace.lap(DecodeMetrics.PHASE_BOUNDS);
+			options.inJustDecodeBounds = false;
+			if (options.outHeight > LARGE_IMAGE_SIZE
+					|| options.outWidth > LARGE_IMAGE_SIZE) {
+				options.inSampleSize = 4;
 			}
-			in = ctx.getContentResolver().openInputStream(uri);
 
-			bitmap = BitmapFactory.decodeStream(in, null, newImageOptions);
+			bitmap = decodePooled(in, uriSource(ctx, uri), options, trace);
+			bitmap = rotateUpright(bitmap, orientation, true, trace);
+			cache(cacheKey, bitmap, trace);
 
 			return bitmap;
 		} catch (FileNotFoundException e) {
-
+			trace.failed(DecodeMetrics.FAILURE_NOT_FOUND, e);
 		} catch (OutOfMemoryError e) {
-
-			if (bitmap != null)
-				bitmap.recycle();
-			bitmap = null;
-			System.gc();
+			// decodes degrade rather than fail, so the upright copy ran out
+			trace.failed(DecodeMetrics.FAILURE_OUT_OF_MEMORY, e);
+			MemoryTrimmer.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
 		} finally {
-			try {
-				in.close();
-			} catch (Exception e) {
-			}
+			IOUtilities.closeStream(in);
 		}
 		return null;
 	}
 
+	private static InputStream openBuffered(Context context, Uri uri)
+			throws FileNotFoundException {
+		InputStream in = context.getContentResolver().openInputStream(uri);
+		if (in == null) {
+			throw new FileNotFoundException(uri.toString());
+		}
+		return new BufferedInputStream(in, IOUtilities.IO_BUFFER_SIZE);
+	}
+
+	/**
+	 * Rewinds the stream to its mark, opening the uri again when the mark
+	 * has been invalidated by reading past {@link #HEADER_MARK_LIMIT}.
+	 */
+	private static InputStream rewind(InputStream in, Context context, Uri uri)
+			throws FileNotFoundException {
+		try {
+			in.reset();
+			return in;
+		} catch (IOException e) {
+			IOUtilities.closeStream(in);
+			return openBuffered(context, uri);
+		}
+	}
+
 	/**
 	 * Method fits the given image bitmap into the center of the given view size
 	 * by scaling bitmap size using canvas draw method.
@@ -165,25 +279,46 @@ public class BitmapUtil {
 	 */
 	public static Bitmap fitToViewByScale(Bitmap bmp, int screenWidth,
 			int screenHeight) {
-		Bitmap background = Bitmap.createBitmap(screenWidth, screenHeight,
+		DecodeTrace trace = new DecodeTrace("fitToViewByScale");
+		Bitmap background = sBitmapPool.getOrCreate(screenWidth, screenHeight,
 				Config.ARGB_8888);
-		float originalWidth = bmp.getWidth(), originalHeight = bmp.getHeight();
 		Canvas canvas = new Canvas(background);
-		float scale = screenWidth / (float) originalWidth;
-		float xTranslation = 0.0f;
-		float yTranslation = (screenHeight - originalHeight * scale) / 2.0f;
 		Matrix transformation = new Matrix();
-		transformation.postTranslate(xTranslation, yTranslation);
-		transformation.preScale(scale, scale);
+		setFitToViewByScale(transformation, bmp.getWidth(), bmp.getHeight(),
+				screenWidth, screenHeight);
 		Paint paint = new Paint();
 		paint.setFilterBitmap(true);
 		canvas.drawBitmap(bmp, transformation, paint);
 		/*
 		 * if (bmp != null) { bmp.recycle(); bmp = null; }
 		 */
+		trace.lap(DecodeMetrics.PHASE_SCALE);
 		return background;
 	}
 
+	/**
+	 * Sets the matrix to the transform used by
+	 * {@link #fitToViewByScale(Bitmap, int, int)}: the bitmap is scaled to the
+	 * view width and centered vertically. Lets a view draw the bitmap through
+	 * the matrix instead of baking a view sized copy.
+	 * 
+	 * @param matrix
+	 *            matrix to overwrite
+	 * @param bitmapWidth
+	 * @param bitmapHeight
+	 * @param screenWidth
+	 * @param screenHeight
+	 */
+	public static void setFitToViewByScale(Matrix matrix, int bitmapWidth,
+			int bitmapHeight, int screenWidth, int screenHeight) {
+		float scale = screenWidth / (float) bitmapWidth;
+		float xTranslation = 0.0f;
+		float yTranslation = (screenHeight - bitmapHeight * scale) / 2.0f;
+		matrix.reset();
+		matrix.postTranslate(xTranslation, yTranslation);
+		matrix.preScale(scale, scale);
+	}
+
 	/**
 	 * Method fits the given image bitmap into the center of the given view size
 	 * by scaling bitmap size using Rect fit method.
@@ -192,24 +327,22 @@ public class BitmapUtil {
 	 * @param screenWidth
 	 * @param screenHeight
 	 * @return Bitmap the result bitmap is size of view with given bitmap at the
-	 *         center
+	 *         center; the given bitmap is left to the caller
 	 */
 	public static Bitmap fitToViewByRect(Bitmap bmp, int screenWidth,
 			int screenHeight) {
+		DecodeTrace trace = new DecodeTrace("fitToViewByRect");
 		RectF defaultRect = new RectF(0, 0, bmp.getWidth(), bmp.getHeight());
 		RectF screenRect = new RectF(0, 0, screenWidth, screenHeight);
 		Matrix defToScreenMatrix = new Matrix();
 		defToScreenMatrix.setRectToRect(defaultRect, screenRect,
 				Matrix.ScaleToFit.CENTER);
-		Bitmap newbmp = Bitmap.createBitmap(screenWidth, screenHeight,
+		Bitmap newbmp = sBitmapPool.getOrCreate(screenWidth, screenHeight,
 				Config.ARGB_8888);
 		Canvas c = new Canvas(newbmp);
 		c.drawColor(Color.TRANSPARENT,Mode.CLEAR);
 		c.drawBitmap(bmp, defToScreenMatrix, null);
-		if (bmp != null) {
-			bmp.recycle();
-			bmp = null;
-		}
+		trace.lap(DecodeMetrics.PHASE_SCALE);
 		return newbmp;
 	}
 
@@ -221,9 +354,21 @@ public class BitmapUtil {
 	 * @return Bitmap scaled to fit width-wise and height scaled in scale ratio.
 	 */
 	static public Bitmap scaleToFitWidth(Bitmap b, int width) {
+		return scaleToFitWidth(b, width, SCALE_NEAREST);
+	}
+
+	/**
+	 * Scale and keep aspect ratio
+	 * 
+	 * @param b
+	 * @param width
+	 * @param scaleMode
+	 *            one of the {@code SCALE_*} constants
+	 * @return Bitmap scaled to fit width-wise and height scaled in scale ratio.
+	 */
+	static public Bitmap scaleToFitWidth(Bitmap b, int width, int scaleMode) {
 		float factor = width / (float) b.getWidth();
-		return Bitmap.createScaledBitmap(b, width,
-				(int) (b.getHeight() * factor), false);
+		return scale(b, width, (int) (b.getHeight() * factor), scaleMode);
 	}
 
 	/**
@@ -234,9 +379,21 @@ public class BitmapUtil {
 	 * @return Bitmap scaled to fit height-wise and width scaled in scale ratio.
 	 */
 	static public Bitmap scaleToFitHeight(Bitmap b, int height) {
+		return scaleToFitHeight(b, height, SCALE_NEAREST);
+	}
+
+	/**
+	 * Scale and keep aspect ratio
+	 * 
+	 * @param b
+	 * @param height
+	 * @param scaleMode
+	 *            one of the {@code SCALE_*} constants
+	 * @return Bitmap scaled to fit height-wise and width scaled in scale ratio.
+	 */
+	static public Bitmap scaleToFitHeight(Bitmap b, int height, int scaleMode) {
 		float factor = height / (float) b.getHeight();
-		return Bitmap.createScaledBitmap(b, (int) (b.getWidth() * factor),
-				height, false);
+		return scale(b, (int) (b.getWidth() * factor), height, scaleMode);
 	}
 
 	/**
@@ -248,31 +405,159 @@ public class BitmapUtil {
 	 * @return Bitmap both width and height scaled according to scale factor
 	 */
 	static public Bitmap scaleToFill(Bitmap b, int width, int height) {
+		return scaleToFill(b, width, height, SCALE_NEAREST);
+	}
+
+	/**
+	 * Scale and keep aspect ratio
+	 * 
+	 * @param b
+	 * @param width
+	 * @param height
+	 * @param scaleMode
+	 *            one of the {@code SCALE_*} constants
+	 * @return Bitmap both width and height scaled according to scale factor
+	 */
+	static public Bitmap scaleToFill(Bitmap b, int width, int height,
+			int scaleMode) {
 		float factorH = height / (float) b.getWidth();
 		float factorW = width / (float) b.getWidth();
 		float factorToUse = (factorH > factorW) ? factorW : factorH;
-		return Bitmap.createScaledBitmap(b, (int) (b.getWidth() * factorToUse),
-				(int) (b.getHeight() * factorToUse), false);
+		return scale(b, (int) (b.getWidth() * factorToUse),
+				(int) (b.getHeight() * factorToUse), scaleMode);
+	}
+
+	/**
+	 * Scales a bitmap to the given size. {@link #SCALE_NEAREST} uses
+	 * {@link Bitmap#createScaledBitmap}; the other modes run the parallel
+	 * {@link Resampler} kernels on the pixels and write the result into a
+	 * pooled bitmap.
+	 *
+	 * @param scaleMode
+	 *            one of the {@code SCALE_*} constants
+	 */
+	public static Bitmap scale(Bitmap b, int width, int height, int scaleMode) {
+		width = Math.max(1, width);
+		height = Math.max(1, height);
+		DecodeTrace trace = new DecodeTrace("scale");
+		if (scaleMode == SCALE_NEAREST) {
+			Bitmap result = Bitmap.createScaledBitmap(b, width, height, false);
+			trace.lap(DecodeMetrics.PHASE_SCALE);
+			return result;
+		}
+		int srcWidth = b.getWidth();
+		int srcHeight = b.getHeight();
+		int[] src = new int[srcWidth * srcHeight];
+		b.getPixels(src, 0, srcWidth, 0, 0, srcWidth, srcHeight);
+		// getPixels unpremultiplies, the kernels need premultiplied pixels
+		boolean alpha = b.hasAlpha();
+		if (alpha) {
+			Resampler.premultiply(src, src.length);
+		}
+		int[] dst = new int[width * height];
+		if (scaleMode == SCALE_AREA_AVERAGE) {
+			Resampler.scaleAreaAverage(src, srcWidth, srcHeight, dst, width,
+					height);
+		} else {
+			Resampler.scaleBilinear(src, srcWidth, srcHeight, dst, width,
+					height);
+		}
+		if (alpha) {
+			Resampler.unpremultiply(dst, dst.length);
+		}
+		Config config = b.getConfig() != null ? b.getConfig()
+				: Config.ARGB_8888;
+		Bitmap result = sBitmapPool.getDirty(width, height, config);
+		if (result == null) {
+			result = Bitmap.createBitmap(width, height, config);
+		}
+		result.setHasAlpha(alpha);
+		result.setPixels(dst, 0, width, 0, 0, width, height);
+		trace.lap(DecodeMetrics.PHASE_SCALE);
+		return result;
 	}
 
 	/**
-	 * Converts a bitmap into an editable bitmap by temperory file writing
+	 * Converts a bitmap into an editable bitmap. The result is always a new
+	 * bitmap, even for a source that is already mutable: most decodes are,
+	 * and the source may be shared through the memory cache, so drawing into
+	 * or recycling the result must not touch it. The pixels are copied in
+	 * memory into a mutable bitmap, taken from the pool when possible; only
+	 * when the heap cannot hold both copies are they round-tripped through a
+	 * mapped temp file (see {@link #convertToMutableMapped(Bitmap)}). The
+	 * source is left to the caller.
 	 * 
 	 * @param imgIn
-	 * @return Bitmap editable bitmap decoded in ARGB_888 format
+	 * @return Bitmap new editable bitmap with the config of the source
 	 */
 	public static Bitmap convertToMutable(Bitmap imgIn) {
+		if (heapCanHold(imgIn.getByteCount())) {
+			try {
+				Bitmap mutable = copyToMutable(imgIn);
+				if (mutable != null) {
+					return mutable;
+				}
+			} catch (OutOfMemoryError e) {
+				Log.w(TAG, "In-memory copy failed, using mapped file");
+			}
+		}
+		return convertToMutableMapped(imgIn);
+	}
+
+	/**
+	 * @return true if the free heap can take another allocation of the given
+	 *         size
+	 */
+	private static boolean heapCanHold(long bytes) {
+		return availableHeapBytes() > bytes;
+	}
+
+	/**
+	 * @return bytes the heap can still grow by
+	 */
+	private static long availableHeapBytes() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return runtime.maxMemory() - used;
+	}
+
+	/**
+	 * Copies the pixels into a mutable bitmap of the same size and config
+	 * without touching storage.
+	 */
+	private static Bitmap copyToMutable(Bitmap imgIn) {
+		Config type = imgIn.getConfig() != null ? imgIn.getConfig()
+				: Config.ARGB_8888;
+		Bitmap mutable = sBitmapPool.get(imgIn.getWidth(), imgIn.getHeight(),
+				type);
+		if (mutable == null) {
+			return imgIn.copy(type, true);
+		}
+		new Canvas(mutable).drawBitmap(imgIn, 0, 0, null);
+		return mutable;
+	}
+
+	/**
+	 * Converts a bitmap into an editable bitmap by temperory file writing.
+	 * Used when the heap cannot hold the source and the copy at the same
+	 * time: the pixels are written to a unique file in the cache directory
+	 * (the default temp directory of an app) and read back into a new
+	 * bitmap, so the copy needs no pixel buffer besides the two bitmaps. The
+	 * source is left to the caller.
+	 * 
+	 * @param imgIn
+	 * @return Bitmap editable bitmap decoded in ARGB_888 format
+	 */
+	static Bitmap convertToMutableMapped(Bitmap imgIn) {
+		File file = null;
+		RandomAccessFile randomAccessFile = null;
+		FileChannel channel = null;
 		try {
 			// this is the file going to use temporally to save the bytes.
 			// This file will not be a image, it will store the raw image data.
-			File file = new File(Environment.getExternalStorageDirectory()
-					+ File.separator + "temp.tmp");
+			file = File.createTempFile("mutable", ".tmp");
 
-			// Open an RandomAccessFile
-			// Make sure you have added uses-permission
-			// android:name=android.permission.WRITE_EXTERNAL_STORAGE
-			// into AndroidManifest.xml file
-			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			randomAccessFile = new RandomAccessFile(file, "rw");
 
 			// get the width and height of the source bitmap.
 			int width = imgIn.getWidth();
@@ -280,234 +565,154 @@ public class BitmapUtil {
 			Config type = imgIn.getConfig();
 
 			// Copy the byte to the file
-			// Assume source bitmap loaded using options.inPreferredConfig =
-			// Config.ARGB_8888;
-			FileChannel channel = randomAccessFile.getChannel();
+			channel = randomAccessFile.getChannel();
 			MappedByteBuffer map = channel.map(MapMode.READ_WRITE, 0,
 					imgIn.getRowBytes() * height);
 			imgIn.copyPixelsToBuffer(map);
-			// recycle the source bitmap, this will be no longer used.
-			imgIn.recycle();
-			System.gc();// try to force the bytes from the imgIn to be released
 
-			// Create a new bitmap to load the bitmap again. Probably the memory
-			// will be available.
-			imgIn = Bitmap.createBitmap(width, height, type);
+			// Create a new bitmap to load the bitmap again.
+			imgIn = sBitmapPool.getDirty(width, height, type);
+			if (imgIn == null) {
+				imgIn = Bitmap.createBitmap(width, height, type);
+			}
 			map.position(0);
 			// load it back from temporary
 			imgIn.copyPixelsFromBuffer(map);
-			// close the temporary file and channel , then delete that also
-			channel.close();
-			randomAccessFile.close();
-
-			// delete the temp file
-			file.delete();
-
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			// close the temporary file and channel , then delete that also
+			IOUtilities.closeStream(channel);
+			IOUtilities.closeStream(randomAccessFile);
+			if (file != null) {
+				file.delete();
+			}
 		}
 
 		return imgIn;
 	}
 
+	/**
+	 * Copies the pixels of an ARGB_8888 bitmap into a buffer mapped onto a
+	 * temporary file, which is deleted when the buffer is closed. The source
+	 * stays untouched; release it to make room for the strip-wise work on
+	 * the buffer.
+	 *
+	 * @param dir
+	 *            directory of the temporary file, e.g.
+	 *            {@code Context.getCacheDir()}; null for the default
+	 */
+	public static PixelBuffer toPixelBuffer(Bitmap bitmap, File dir)
+			throws IOException {
+		if (bitmap.getConfig() != Config.ARGB_8888) {
+			throw new IllegalArgumentException("Unsupported config "
+					+ bitmap.getConfig());
+		}
+		PixelBuffer buffer = PixelBuffer.mapTemp(dir, bitmap.getWidth(),
+				bitmap.getHeight());
+		bitmap.copyPixelsToBuffer(buffer.bytes());
+		return buffer;
+	}
+
+	/**
+	 * Copies a pixel buffer into an ARGB_8888 bitmap, taken from the pool
+	 * when possible. The buffer must fit in the heap, e.g. after
+	 * {@link PixelBuffer#scaleAreaAverage} down to screen size.
+	 */
+	public static Bitmap toBitmap(PixelBuffer buffer) {
+		int width = buffer.getWidth();
+		int height = buffer.getHeight();
+		Bitmap bitmap = sBitmapPool.getDirty(width, height, Config.ARGB_8888);
+		if (bitmap == null) {
+			bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+		}
+		bitmap.copyPixelsFromBuffer(buffer.bytes());
+		return bitmap;
+	}
+
 	/**
 	 * This Method will return gallery content uri
 	 */
 	public static String getPath(Context context, Uri uri) {
-		String[] stringprojection = { MediaStore.Images.Media.DATA };
-		Cursor cursor = context.getContentResolver().query(uri,
-				stringprojection, null, null, null);
-		if (cursor == null) {
-			return null;
-		}
-		int column_index = cursor
-				.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-		cursor.moveToFirst();
-		String stringcolumnindex = cursor.getString(column_index);
-		return stringcolumnindex;
+		return UriPathResolver.getInstance(context).resolve(uri);
 	}
 
 	public static Bitmap getImageFromSDCard(String resultPath) {
 		String path = resultPath;
-		InputStream is = null;
-		Bitmap bitmap = null;
+		String cacheKey = BitmapMemoryCache.key(path, 0, 0, Config.ARGB_8888,
+				"full");
+		DecodeTrace trace = new DecodeTrace("getImageFromSDCard");
+		Bitmap bitmap = cachedBitmap(cacheKey, trace);
+		if (bitmap != null) {
+			return bitmap;
+		}
 		try {
-			is = new FileInputStream(path);
-			BitmapFactory.Options options = new BitmapFactory.Options();
-			options.inJustDecodeBounds = true;
-			bitmap = BitmapFactory.decodeStream(is, null, options);
-			BitmapFactory.Options newImageOptions = new BitmapFactory.Options();
-			is = new FileInputStream(path);
-			bitmap = BitmapFactory.decodeStream(is, null, newImageOptions);
-			is.close();
+			bitmap = decodeFile(path, 0, 0, SAMPLE_NONE, false, trace);
+			cache(cacheKey, bitmap, trace);
 			return bitmap;
 		} catch (FileNotFoundException e) {
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				is.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
 		}
 		return null;
 	}
 
 	public static Bitmap getBitmapFromPath(String resultpath,
 			DisplayMetrics metrics) {
-		InputStream is = null;
-		Bitmap bitmap = null;
+		String cacheKey = BitmapMemoryCache.key(resultpath,
+				metrics.widthPixels, metrics.heightPixels, Config.ARGB_8888,
+				"fit");
+		DecodeTrace trace = new DecodeTrace("getBitmapFromPath");
+		Bitmap bitmap = cachedBitmap(cacheKey, trace);
+		if (bitmap != null) {
+			return bitmap;
+		}
 		try {
-			is = new FileInputStream(resultpath);
-
-			BitmapFactory.Options options = new BitmapFactory.Options();
-			options.inJustDecodeBounds = true;
-			BitmapFactory.decodeStream(is, null, options);
-
-			int attributeInt = 0;
-			try {
-				attributeInt = new ExifInterface(resultpath).getAttributeInt(
-						"Orientation", 1);
-			} catch (IOException ex) {
-			}
-
-			options.inSampleSize = calculateInSampleSize(options,
-					metrics.widthPixels, metrics.heightPixels, attributeInt);
-			options.inJustDecodeBounds = false;
-			/*
-			 * BitmapFactory.Options newImageOptions = new
-			 * BitmapFactory.Options(); if (options.outHeight >
-			 * metrics.heightPixels || options.outWidth > metrics.widthPixels) {
-			 * newImageOptions.inSampleSize = 2; }
-			 */
-
-			// IOUtilities.closeStream(is);
-			is = new FileInputStream(resultpath);
-
-			/* bitmap = BitmapFactory.decodeStream(is, null, options); */
-			bitmap = rotateImage(BitmapFactory.decodeStream(is, null, options),
-					resultpath);
-			try {
-				is.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			bitmap = decodeFile(resultpath, metrics.widthPixels,
+					metrics.heightPixels, SAMPLE_FIT, true, trace);
+			cache(cacheKey, bitmap, trace);
 			return bitmap;
 		} catch (FileNotFoundException e) {
-		} finally {
-			// IOUtilities.closeStream(is);
 		}
 		return null;
 	}
 	
 	public static Bitmap getBitmapFromPath(String resultpath,
 			Point point) {
-		InputStream is = null;
-		Bitmap bitmap = null;
+		String cacheKey = BitmapMemoryCache.key(resultpath, point.x, point.y,
+				Config.ARGB_8888, "fit");
+		DecodeTrace trace = new DecodeTrace("getBitmapFromPath");
+		Bitmap bitmap = cachedBitmap(cacheKey, trace);
+		if (bitmap != null) {
+			return bitmap;
+		}
 		try {
-			is = new FileInputStream(resultpath);
-
-			BitmapFactory.Options options = new BitmapFactory.Options();
-			options.inJustDecodeBounds = true;
-			BitmapFactory.decodeStream(is, null, options);
-
-			int attributeInt = 0;
-			try {
-				attributeInt = new ExifInterface(resultpath).getAttributeInt(
-						"Orientation", 1);
-			} catch (IOException ex) {
-			}
-
-			options.inSampleSize = calculateInSampleSize(options,
-					point.x, point.y, attributeInt);
-			options.inJustDecodeBounds = false;
-			/*
-			 * BitmapFactory.Options newImageOptions = new
-			 * BitmapFactory.Options(); if (options.outHeight >
-			 * metrics.heightPixels || options.outWidth > metrics.widthPixels) {
-			 * newImageOptions.inSampleSize = 2; }
-			 */
-
-			// IOUtilities.closeStream(is);
-			is = new FileInputStream(resultpath);
-
-			/* bitmap = BitmapFactory.decodeStream(is, null, options); */
-			bitmap = rotateImage(BitmapFactory.decodeStream(is, null, options),
-					resultpath);
-			try {
-				is.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			bitmap = decodeFile(resultpath, point.x, point.y, SAMPLE_FIT,
+					true, trace);
+			cache(cacheKey, bitmap, trace);
 			return bitmap;
 		} catch (FileNotFoundException e) {
-		} finally {
-			// IOUtilities.closeStream(is);
 		}
 		return null;
 	}
  
 	public static  Bitmap getBitmap(String path,Context context) {
-		ContentResolver mContentResolver=context.getContentResolver();
-		Uri uri = Uri.fromFile(new File(path));
-		InputStream in = null;
-		Bitmap bitmap = null;
-		Matrix matrix = new Matrix();
-
-		int angle = 0;
-		try {
-			ExifInterface exif = new ExifInterface(path);
-			int orientation = exif.getAttributeInt(
-					ExifInterface.TAG_ORIENTATION,
-					ExifInterface.ORIENTATION_NORMAL);
-
-			if (orientation == ExifInterface.ORIENTATION_ROTATE_90) {
-				angle = 90;
-			} else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) {
-				angle = 180;
-			} else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) {
-				angle = 270;
-			}
-		} catch (Exception e) {
-
+		String cacheKey = BitmapMemoryCache.key(path, 0, 0, Config.ARGB_8888,
+				"sample2-rotated");
+		DecodeTrace trace = new DecodeTrace("getBitmap");
+		Bitmap bitmap = cachedBitmap(cacheKey, trace);
+		if (bitmap != null) {
+			return bitmap;
 		}
-		matrix.postRotate(angle);
 		try {
-			in = mContentResolver.openInputStream(uri);
-
-			BitmapFactory.Options options = new BitmapFactory.Options();
-			options.inJustDecodeBounds = true;
-			bitmap = BitmapFactory.decodeStream(in, null, options);
-
-			BitmapFactory.Options newImageOptions = new BitmapFactory.Options();
-			if (options.outHeight > 1000 || options.outWidth > 1000) {
-				newImageOptions.inSampleSize = 2;
-			}
-			in = mContentResolver.openInputStream(uri);
-
-			bitmap = BitmapFactory.decodeStream(in, null, newImageOptions);
-
-			bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
-					bitmap.getHeight(), matrix, true);
+			bitmap = decodeFile(path, 0, 0, SAMPLE_HALVE_LARGE, true, trace);
+			cache(cacheKey, bitmap, trace);
 			return bitmap;
 		} catch (FileNotFoundException e) {
 			//Log.e(TAG, "file " + path + " not found");
 		} catch (OutOfMemoryError e) {
-
-			if (bitmap != null)
-				bitmap.recycle();
-			bitmap = null;
-			System.gc();
-
-		}
-
-		finally {
-			IOUtilities.closeStream(in);
+			// already reported by decodeFile
+			MemoryTrimmer.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
 		}
 		return null;
 	}
@@ -530,37 +735,40 @@ public class BitmapUtil {
 		String tempImagepath = imagePath;
 		if (tempImagepath == null) {
 			if (isGalleryON) {
-				final String[] array = { "_data" };
-				final Cursor query = context.getContentResolver().query(
-						galleryUri, array, null, null, null);
-				final boolean moveToFirst = query.moveToFirst();
-				if (moveToFirst) {
-					tempImagepath = query.getString(query
-							.getColumnIndexOrThrow("_data"));
-				}
-				query.close();
+				tempImagepath = UriPathResolver.getInstance(context).resolve(
+						galleryUri);
 			} else {
 				tempImagepath = galleryUri.getPath();
 			}
 		}
-		// First decode with inJustDecodeBounds=true to check dimensions
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeFile(tempImagepath, options);
-		int attributeInt = 0;
+		if (tempImagepath == null) {
+			return null;
+		}
+		String cacheKey = BitmapMemoryCache.key(tempImagepath, screenWidth,
+				screenHeight, Config.ARGB_8888, "fit");
+		DecodeTrace trace = new DecodeTrace("getBitmapFromUri");
+		Bitmap bitmap = cachedBitmap(cacheKey, trace);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		DiskBitmapCache diskCache = DiskBitmapCache.getInstance(context);
+		if (diskCache != null) {
+			bitmap = diskCachedBitmap(diskCache, cacheKey, trace);
+			if (bitmap != null) {
+				return bitmap;
+			}
+		}
 		try {
-			attributeInt = new ExifInterface(tempImagepath).getAttributeInt(
-					"Orientation", 1);
-		} catch (IOException ex) {
+			bitmap = decodeFile(tempImagepath, screenWidth, screenHeight,
+					SAMPLE_FIT, true, trace);
+		} catch (FileNotFoundException e) {
+			return null;
 		}
-
-		// Calculate inSampleSize
-		options.inSampleSize = calculateInSampleSize(options, screenWidth,
-				screenHeight, attributeInt);
-		// Decode bitmap with inSampleSize set
-		options.inJustDecodeBounds = false;
-		return rotateImage(BitmapFactory.decodeFile(tempImagepath, options),
-				tempImagepath);
+		cache(cacheKey, bitmap, trace);
+		if (diskCache != null && !trace.isDegraded()) {
+			diskCache.put(cacheKey, bitmap);
+		}
+		return bitmap;
 	}
 
 	public static Bitmap getBitmapFromUriWithoutScale(final Context context,
@@ -568,179 +776,873 @@ public class BitmapUtil {
 		String tempImagepath = imagePath;
 		if (tempImagepath == null) {
 			if (isGalleryON) {
-				final String[] array = { "_data" };
-				final Cursor query = context.getContentResolver().query(
-						galleryUri, array, null, null, null);
-				final boolean moveToFirst = query.moveToFirst();
-				if (moveToFirst) {
-					tempImagepath = query.getString(query
-							.getColumnIndexOrThrow("_data"));
-				}
-				query.close();
+				tempImagepath = UriPathResolver.getInstance(context).resolve(
+						galleryUri);
 			} else {
 				tempImagepath = galleryUri.getPath();
 			}
 		}
+		if (tempImagepath == null) {
+			return null;
+		}
+		String cacheKey = BitmapMemoryCache.key(tempImagepath, 0, 0,
+				Config.ARGB_8888, "full-rotated");
+		DecodeTrace trace = new DecodeTrace("getBitmapFromUriWithoutScale");
+		Bitmap bitmap = cachedBitmap(cacheKey, trace);
+		if (bitmap != null) {
+			return bitmap;
+		}
+
+		try {
+			bitmap = decodeFile(tempImagepath, 0, 0, SAMPLE_NONE, true, trace);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		cache(cacheKey, bitmap, trace);
+		return bitmap;
+	}
 
-		return rotateImage(BitmapFactory.decodeFile(tempImagepath),
-				tempImagepath);
-	}
-
 	public static Bitmap rotateImage(Bitmap bitmap, String filePath) {
 		Bitmap resultBitmap = null;
+		DecodeTrace trace = new DecodeTrace("rotateImage");
 
 		try {
-			ExifInterface exifInterface = new ExifInterface(filePath);
-			int orientation = exifInterface.getAttributeInt(
-					ExifInterface.TAG_ORIENTATION, 1);
-			Matrix matrix = new Matrix();
-			float angle = 0;
-			if (orientation == ExifInterface.ORIENTATION_ROTATE_90) {
-				angle = 90;
-			} else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) {
-				angle = 180;
-			} else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) {
-				angle = 270;
-			}
-			if (angle != 0) {
-				matrix.postRotate(angle);
-				// Rotate the bitmap
+			int orientation = ExifOrientation.read(filePath);
+			trace.lap(DecodeMetrics.PHASE_EXIF);
+			// Rotate the bitmap
+			resultBitmap = rotateUpright(bitmap, orientation, false, trace);
+		} catch (Exception exception) {
+			return bitmap;
+		}
+		return resultBitmap;
+	}
 
-				resultBitmap = Bitmap.createBitmap(bitmap, 0, 0,
-						bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+	/**
+	 * Decodes an image file opening it only once. The orientation comes from
+	 * the {@link ExifOrientation} cache. The file is read through a buffered
+	 * stream that is marked at the start: the bounds are read from the
+	 * buffered head, then the stream is rewound for the sampled pixel
+	 * decode. The file is only reopened if the header does not fit into
+	 * {@link #HEADER_MARK_LIMIT} or the decoder rejects the pooled bitmap
+	 * offered for reuse.
+	 *
+	 * @param path
+	 *            image file
+	 * @param width
+	 *            target width, ignored by {@link #SAMPLE_NONE} and
+	 *            {@link #SAMPLE_HALVE_LARGE}
+	 * @param height
+	 *            target height, ignored by {@link #SAMPLE_NONE} and
+	 *            {@link #SAMPLE_HALVE_LARGE}
+	 * @param sampleMode
+	 *            one of the {@code SAMPLE_*} constants
+	 * @param rotate
+	 *            whether to rotate the result upright per its EXIF orientation
+	 * @return decoded bitmap, or null when the file cannot be decoded
+	 * @throws FileNotFoundException
+	 *             if the file cannot be opened
+	 */
+	static Bitmap decodeFile(String path, int width, int height,
+			int sampleMode, boolean rotate) throws FileNotFoundException {
+		return decodeFile(path, width, height, sampleMode, rotate,
+				new DecodeTrace("decodeFile"));
+	}
 
-				bitmap.recycle();
-				bitmap = null;
-			} else {
-				return bitmap;
+	/**
+	 * {@link #decodeFile(String, int, int, int, boolean)} reporting to the
+	 * trace of the calling entry point.
+	 */
+	private static Bitmap decodeFile(String path, int width, int height,
+			int sampleMode, boolean rotate, DecodeTrace trace)
+			throws FileNotFoundException {
+		InputStream in = openBuffered(path, trace);
+		try {
+			int orientation = ExifOrientation.read(path);
+			trace.lap(DecodeMetrics.PHASE_EXIF);
+			in.mark(HEADER_MARK_LIMIT);
+
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(in, null, options);
+			in = rewind(in, path);
+			trace.lap(DecodeMetrics.PHASE_BOUNDS);
+			options.inJustDecodeBounds = false;
+			options.inSampleSize = sampleSize(options, width, height,
+					orientation, sampleMode);
+
+			Bitmap bitmap = decodePooled(in, fileSource(path), options, trace);
+			if (rotate) {
+				bitmap = rotateUpright(bitmap, orientation, true, trace);
 			}
-		} catch (Exception exception) {
 			return bitmap;
+		} catch (OutOfMemoryError e) {
+			trace.failed(DecodeMetrics.FAILURE_OUT_OF_MEMORY, e);
+			throw e;
+		} finally {
+			IOUtilities.closeStream(in);
 		}
-		return resultBitmap;
 	}
 
-	public static int calculateInSampleSize(
-			final BitmapFactory.Options bitmapFactoryOptions, final int width,
-			final int height, final int attributeInt) {
-		final int outHeight = bitmapFactoryOptions.outHeight;
-		final int outWidth = bitmapFactoryOptions.outWidth;
-		int sampleSize = 1;
-		if ((outHeight > width || outWidth > height)
-				&& (attributeInt == 8 || attributeInt == 6)) {
-			final int round = Math.round((float) outHeight / (float) width);
-			final int round2 = Math.round((float) outWidth / (float) height);
-			if (round < round2) {
-				sampleSize = round;
-			} else {
-				sampleSize = round2;
+	/**
+	 * Decodes a file within a memory budget. The bounds pass picks the
+	 * largest decode that fits into {@code maxBytes}: the smallest power of
+	 * two sample size, and for opaque JPEGs {@link Config#RGB_565} when the
+	 * quality hint allows it. The result is rotated upright and is not
+	 * cached.
+	 *
+	 * @param path
+	 *            image file
+	 * @param maxBytes
+	 *            upper bound of the pixel bytes of the result
+	 * @param quality
+	 *            {@link #QUALITY_HIGH}, {@link #QUALITY_BALANCED} or
+	 *            {@link #QUALITY_LOW}
+	 * @return bitmap with the chosen parameters, or null when the file
+	 *         cannot be decoded
+	 * @throws FileNotFoundException
+	 *             if the file cannot be opened
+	 */
+	public static BudgetedBitmap decodeWithinBudget(String path,
+			long maxBytes, int quality) throws FileNotFoundException {
+		DecodeTrace trace = new DecodeTrace("decodeWithinBudget");
+		InputStream in = openBuffered(path, trace);
+		try {
+			int orientation = ExifOrientation.read(path);
+			trace.lap(DecodeMetrics.PHASE_EXIF);
+			in.mark(HEADER_MARK_LIMIT);
+
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(in, null, options);
+			if (options.outWidth <= 0 || options.outHeight <= 0) {
+				trace.failed(DecodeMetrics.FAILURE_UNDECODABLE, null);
+				return null;
 			}
-		} else if (outHeight > height || outWidth > width) {
-			final int round3 = Math.round((float) outHeight / (float) height);
-			final int round4 = Math.round((float) outWidth / (float) width);
-			if (round3 < round4) {
-				sampleSize = round3;
-			} else {
-				sampleSize = round4;
+			in = rewind(in, path);
+			trace.lap(DecodeMetrics.PHASE_BOUNDS);
+			options.inJustDecodeBounds = false;
+			chooseBudgetOptions(options, maxBytes, quality);
+			int sourceWidth = options.outWidth;
+			int sourceHeight = options.outHeight;
+
+			Bitmap bitmap = decodePooled(in, fileSource(path), options, trace);
+			if (bitmap == null) {
+				return null;
 			}
+			bitmap = rotateUpright(bitmap, orientation, true, trace);
+			return new BudgetedBitmap(bitmap, options.inSampleSize,
+					options.inPreferredConfig, sourceWidth, sourceHeight);
+		} catch (OutOfMemoryError e) {
+			trace.failed(DecodeMetrics.FAILURE_OUT_OF_MEMORY, e);
+			throw e;
+		} finally {
+			IOUtilities.closeStream(in);
+		}
+	}
+
+	/**
+	 * Decodes a file straight into a view sized bitmap. The EXIF rotation,
+	 * the scale and the centering are composed into one matrix and the
+	 * sampled decode is drawn once into the pooled result, instead of going
+	 * through {@link #rotateImage} and {@link #fitToViewByScale} or
+	 * {@link #fitToViewByRect}, which each allocate and fill another full
+	 * size bitmap.
+	 *
+	 * @param path
+	 *            image file
+	 * @param viewWidth
+	 *            width of the result
+	 * @param viewHeight
+	 *            height of the result
+	 * @param fitMode
+	 *            {@link #FIT_BY_SCALE} or {@link #FIT_BY_RECT}
+	 * @return view sized bitmap, or null when the file cannot be decoded
+	 * @throws FileNotFoundException
+	 *             if the file cannot be opened
+	 */
+	public static Bitmap decodeFitted(String path, int viewWidth,
+			int viewHeight, int fitMode) throws FileNotFoundException {
+		String cacheKey = BitmapMemoryCache.key(path, viewWidth, viewHeight,
+				Config.ARGB_8888, fitMode == FIT_BY_RECT ? "fitted-rect"
+						: "fitted-scale");
+		DecodeTrace trace = new DecodeTrace("decodeFitted");
+		Bitmap cached = cachedBitmap(cacheKey, trace);
+		if (cached != null) {
+			return cached;
+		}
+		int orientation = ExifOrientation.read(path);
+		trace.lap(DecodeMetrics.PHASE_EXIF);
+		Bitmap decoded = decodeFile(path, viewWidth, viewHeight, SAMPLE_FIT,
+				false, trace);
+		if (decoded == null) {
+			return null;
 		}
-		if (sampleSize > 16) {
-			sampleSize = 16;
+		Matrix matrix = new Matrix();
+		setUprightFit(matrix, decoded.getWidth(), decoded.getHeight(),
+				orientation, viewWidth, viewHeight,
+				fitMode);
+		Bitmap result = sBitmapPool.getOrCreate(viewWidth, viewHeight,
+				Config.ARGB_8888);
+		Canvas canvas = new Canvas(result);
+		canvas.drawBitmap(decoded, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+		release(decoded);
+		trace.lap(DecodeMetrics.PHASE_SCALE);
+		cache(cacheKey, result, trace);
+		return result;
+	}
+
+	/**
+	 * Sets the matrix to turn a bitmap upright per its EXIF orientation and
+	 * fit the upright image into the view.
+	 */
+	static void setUprightFit(Matrix matrix, int bitmapWidth,
+			int bitmapHeight, int orientation, int viewWidth, int viewHeight,
+			int fitMode) {
+		RectF bounds = new RectF(0, 0, bitmapWidth, bitmapHeight);
+		Matrix rotation = new Matrix();
+		if (ExifOrientation.isMirrored(orientation)) {
+			rotation.postScale(-1, 1);
+		}
+		rotation.postRotate(ExifOrientation.toDegrees(orientation));
+		rotation.mapRect(bounds);
+		rotation.postTranslate(-bounds.left, -bounds.top);
+		int uprightWidth = Math.round(bounds.width());
+		int uprightHeight = Math.round(bounds.height());
+		if (fitMode == FIT_BY_RECT) {
+			matrix.setRectToRect(new RectF(0, 0, uprightWidth, uprightHeight),
+					new RectF(0, 0, viewWidth, viewHeight),
+					Matrix.ScaleToFit.CENTER);
 		} else {
-			if (sampleSize > 8) {
-				return 8;
+			setFitToViewByScale(matrix, uprightWidth, uprightHeight,
+					viewWidth, viewHeight);
+		}
+		matrix.preConcat(rotation);
+	}
+
+	/**
+	 * Decodes a file to exactly the largest size that fits into the target
+	 * while keeping the aspect ratio of the upright image. The decoder first
+	 * samples by a power of two, then scales the rest of the way through
+	 * {@code inDensity} and {@code inTargetDensity}, so no oversized
+	 * intermediate bitmap is allocated and no {@link #scaleToFitWidth} style
+	 * pass is needed afterwards. Images smaller than the target are not
+	 * scaled up.
+	 *
+	 * @param path
+	 *            image file
+	 * @param width
+	 *            maximum width of the upright result
+	 * @param height
+	 *            maximum height of the upright result
+	 * @return upright bitmap, or null when the file cannot be decoded
+	 * @throws FileNotFoundException
+	 *             if the file cannot be opened
+	 */
+	public static Bitmap decodeToSize(String path, int width, int height)
+			throws FileNotFoundException {
+		SizedDecode decode = prepareDecodeToSize(path, width, height);
+		return decode != null ? decodeToSize(decode) : null;
+	}
+
+	/**
+	 * Runs the first half of {@link #decodeToSize}: looks the result up in
+	 * the memory cache, and on a miss opens the file, reads its orientation
+	 * and bounds and works out the sample size. Lets a caller budget the
+	 * memory of the decode before the pixels are decoded without opening
+	 * or parsing the file twice.
+	 *
+	 * @return the prepared decode, to be passed to
+	 *         {@link #decodeToSize(SizedDecode)} or closed; null when the
+	 *         file is not a decodable image
+	 * @throws FileNotFoundException
+	 *             if the file cannot be opened
+	 */
+	static SizedDecode prepareDecodeToSize(String path, int width, int height)
+			throws FileNotFoundException {
+		String cacheKey = BitmapMemoryCache.key(path, width, height,
+				Config.ARGB_8888, "exact-rotated");
+		DecodeTrace trace = new DecodeTrace("decodeToSize");
+		Bitmap cached = cachedBitmap(cacheKey, trace);
+		if (cached != null) {
+			return new SizedDecode(cached);
+		}
+		InputStream in = openBuffered(path, trace);
+		try {
+			int orientation = ExifOrientation.read(path);
+			trace.lap(DecodeMetrics.PHASE_EXIF);
+			in.mark(HEADER_MARK_LIMIT);
+
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(in, null, options);
+			if (options.outWidth <= 0 || options.outHeight <= 0) {
+				trace.failed(DecodeMetrics.FAILURE_UNDECODABLE, null);
+				return null;
 			}
-			if (sampleSize > 4) {
-				return 4;
+			in = rewind(in, path);
+			trace.lap(DecodeMetrics.PHASE_BOUNDS);
+			options.inJustDecodeBounds = false;
+
+			boolean scaled = setExactSize(options, orientation, width, height);
+			SizedDecode decode = new SizedDecode(path, cacheKey, trace, in,
+					options, orientation, scaled);
+			in = null;
+			return decode;
+		} finally {
+			IOUtilities.closeStream(in);
+		}
+	}
+
+	/**
+	 * Runs the second half of {@link #decodeToSize}: decodes the pixels of a
+	 * prepared decode and closes it.
+	 *
+	 * @return upright bitmap, or null when the file cannot be decoded
+	 * @throws FileNotFoundException
+	 *             if the file has to be opened again and is gone
+	 */
+	static Bitmap decodeToSize(SizedDecode decode)
+			throws FileNotFoundException {
+		if (decode.mCached != null) {
+			return decode.mCached;
+		}
+		DecodeTrace trace = decode.mTrace;
+		// time spent between the halves belongs to no phase
+		trace.restart();
+		BitmapFactory.Options options = decode.mOptions;
+		Bitmap bitmap;
+		try {
+			bitmap = decodePooled(decode.mIn, fileSource(decode.mPath),
+					options, trace);
+			if (bitmap == null) {
+				return null;
 			}
-			if (sampleSize > 2) {
-				return 2;
+			if (decode.mScaled) {
+				// undo the density the scaling left on the bitmap
+				bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
 			}
+			bitmap = rotateUpright(bitmap, decode.mOrientation, true, trace);
+		} catch (OutOfMemoryError e) {
+			trace.failed(DecodeMetrics.FAILURE_OUT_OF_MEMORY, e);
+			throw e;
+		} finally {
+			decode.close();
+		}
+		cache(decode.mCacheKey, bitmap, trace);
+		return bitmap;
+	}
+
+	/**
+	 * Sets the sample size, and the density scaling when sampling alone
+	 * does not land on the size, for {@link #decodeToSize} from the bounds
+	 * in {@code options}.
+	 *
+	 * @return whether the decoder scales after sampling
+	 */
+	private static boolean setExactSize(BitmapFactory.Options options,
+			int orientation, int width, int height) {
+		// work in the orientation of the encoded image
+		boolean swap = ImageMath.swapsSides(orientation);
+		int maxWidth = swap ? height : width;
+		int maxHeight = swap ? width : height;
+		float scale = Math.min(1f, Math.min(
+				maxWidth / (float) options.outWidth, maxHeight
+						/ (float) options.outHeight));
+		int targetWidth = Math.max(1, Math.round(options.outWidth * scale));
+		int targetHeight = Math.max(1, Math.round(options.outHeight * scale));
+		options.inSampleSize = ImageMath.exactSampleSize(options.outWidth,
+				options.outHeight, targetWidth, targetHeight);
+		boolean scaled = targetWidth * options.inSampleSize < options.outWidth;
+		if (scaled) {
+			// the decoder scales the sampled pixels by
+			// inTargetDensity / inDensity
+			options.inScaled = true;
+			options.inDensity = options.outWidth;
+			options.inTargetDensity = targetWidth * options.inSampleSize;
 		}
-		return sampleSize;
+		return scaled;
 	}
-	public static Bitmap decodeUri(String selectedImage, int width, int height)
+
+	/**
+	 * A {@link #decodeToSize} between its bounds pass and its pixel decode,
+	 * see {@link #prepareDecodeToSize}. Holds the open file until it is
+	 * decoded or closed.
+	 */
+	static final class SizedDecode implements Closeable {
+		private final Bitmap mCached;
+		private final String mPath;
+		private final String mCacheKey;
+		private final DecodeTrace mTrace;
+		private final InputStream mIn;
+		private final BitmapFactory.Options mOptions;
+		private final int mOrientation;
+		private final boolean mScaled;
+
+		SizedDecode(Bitmap cached) {
+			this(cached, null, null, null, null, null, 0, false);
+		}
+
+		SizedDecode(String path, String cacheKey, DecodeTrace trace,
+				InputStream in, BitmapFactory.Options options,
+				int orientation, boolean scaled) {
+			this(null, path, cacheKey, trace, in, options, orientation, scaled);
+		}
+
+		private SizedDecode(Bitmap cached, String path, String cacheKey,
+				DecodeTrace trace, InputStream in,
+				BitmapFactory.Options options, int orientation, boolean scaled) {
+			mCached = cached;
+			mPath = path;
+			mCacheKey = cacheKey;
+			mTrace = trace;
+			mIn = in;
+			mOptions = options;
+			mOrientation = orientation;
+			mScaled = scaled;
+		}
+
+		/**
+		 * @return peak pixel bytes of the decode: the sampled bitmap before
+		 *         the density scaling, at four bytes per pixel, and the
+		 *         copies {@link #rotateUpright} makes of it; 0 when the
+		 *         result was cached
+		 */
+		long getEstimatedBytes() {
+			if (mCached != null) {
+				return 0;
+			}
+			int sampleSize = mOptions.inSampleSize;
+			long sampledWidth = (mOptions.outWidth + sampleSize - 1)
+					/ sampleSize;
+			long sampledHeight = (mOptions.outHeight + sampleSize - 1)
+					/ sampleSize;
+			long bytes = sampledWidth * sampledHeight * 4;
+			if (mOrientation > Orientation.NORMAL
+					&& mOrientation <= Orientation.ROTATE_270) {
+				// the pixels are read into an int[], and turning them
+				// sideways needs a second bitmap of the upright size
+				bytes *= Orientation.swapsSides(mOrientation) ? 3 : 2;
+			}
+			return bytes;
+		}
+
+		@Override
+		public void close() {
+			IOUtilities.closeStream(mIn);
+		}
+	}
+
+	/**
+	 * Decodes a quick low resolution stand-in for an image, to show while
+	 * the full decode runs. The thumbnail embedded in the EXIF data is used
+	 * when there is one, which only reads the head of the file; otherwise
+	 * the image is decoded at a coarse power of two sample size.
+	 *
+	 * @param path
+	 *            image file
+	 * @param width
+	 *            target width of the full decode
+	 * @param height
+	 *            target height of the full decode
+	 * @return upright preview, or null when the file cannot be decoded
+	 */
+	public static Bitmap decodePreview(String path, int width, int height) {
+		DecodeTrace trace = new DecodeTrace("decodePreview");
+		ExifOrientation.Header header = ExifOrientation.readHeader(path);
+		byte[] thumbnail = ExifOrientation.readThumbnail(path, header);
+		trace.lap(DecodeMetrics.PHASE_EXIF);
+		if (thumbnail != null) {
+			Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0,
+					thumbnail.length);
+			trace.lap(DecodeMetrics.PHASE_DECODE);
+			if (bitmap != null) {
+				trace.decoded(bitmap.getWidth(), bitmap.getHeight(), 1,
+						bitmap, false);
+				return rotateUpright(bitmap, header.getOrientation(), true,
+						trace);
+			}
+		}
+		// fall back to a coarse decode
+		try {
+			return decodeFile(path, Math.max(1, width / PREVIEW_DIVISOR),
+					Math.max(1, height / PREVIEW_DIVISOR),
+					SAMPLE_POWER_OF_TWO, true, trace);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the sample size and config of a budgeted decode from the bounds
+	 * in {@code options}.
+	 */
+	private static void chooseBudgetOptions(BitmapFactory.Options options,
+			long maxBytes, int quality) {
+		int width = options.outWidth;
+		int height = options.outHeight;
+		int argbSampleSize = ImageMath.budgetSampleSize(width, height, 4,
+				maxBytes);
+		// only JPEGs are known to have no alpha before decoding
+		boolean opaque = "image/jpeg".equals(options.outMimeType);
+		Config config = Config.ARGB_8888;
+		int sampleSize = argbSampleSize;
+		if (opaque && quality != QUALITY_HIGH) {
+			int rgbSampleSize = ImageMath.budgetSampleSize(width, height, 2,
+					maxBytes);
+			// balanced trades color depth for resolution, never the other way
+			if (quality == QUALITY_LOW || rgbSampleSize < argbSampleSize) {
+				config = Config.RGB_565;
+				sampleSize = rgbSampleSize;
+			}
+		}
+		options.inPreferredConfig = config;
+		options.inSampleSize = sampleSize;
+	}
+
+	/**
+	 * Opens the encoded image again for a retry of its decode.
+	 */
+	private interface StreamSource {
+		InputStream open() throws FileNotFoundException;
+	}
+
+	private static StreamSource fileSource(final String path) {
+		return new StreamSource() {
+			@Override
+			public InputStream open() throws FileNotFoundException {
+				return openBuffered(path);
+			}
+		};
+	}
+
+	private static StreamSource uriSource(final Context context, final Uri uri) {
+		return new StreamSource() {
+			@Override
+			public InputStream open() throws FileNotFoundException {
+				return openBuffered(context, uri);
+			}
+		};
+	}
+
+	/**
+	 * Decodes the pixels into a pooled bitmap when one fits. If the decoder
+	 * rejects it after consuming part of the stream, the image is opened
+	 * again and decoded without reuse. If the heap cannot hold the bitmap,
+	 * the decode steps down {@link #decodeDegraded the ladder}. The bounds
+	 * must be in {@code options}.
+	 *
+	 * @return decoded bitmap, or null when the image cannot be decoded or
+	 *         does not fit in memory even degraded
+	 */
+	private static Bitmap decodePooled(InputStream in, StreamSource source,
+			BitmapFactory.Options options, DecodeTrace trace)
 			throws FileNotFoundException {
+		// the decode overwrites the bounds with the size of the result
+		int sourceWidth = options.outWidth;
+		int sourceHeight = options.outHeight;
+		sBitmapPool.addInBitmapOptions(options);
+		Bitmap bitmap;
+		try {
+			try {
+				bitmap = BitmapFactory.decodeStream(in, null, options);
+			} catch (IllegalArgumentException e) {
+				sBitmapPool.put(options.inBitmap);
+				options.inBitmap = null;
+				bitmap = decodeStream(source, options);
+			}
+		} catch (OutOfMemoryError e) {
+			bitmap = decodeDegraded(source, options, sourceWidth,
+					sourceHeight, trace);
+			if (bitmap == null) {
+				trace.lap(DecodeMetrics.PHASE_DECODE);
+				trace.failed(DecodeMetrics.FAILURE_OUT_OF_MEMORY, e);
+				return null;
+			}
+		}
+		reportDecode(trace, sourceWidth, sourceHeight, options, bitmap);
+		return bitmap;
+	}
 
-		File f = new File(selectedImage);
-		BitmapFactory.Options o = new BitmapFactory.Options();
-		o.inJustDecodeBounds = true;
-		BitmapFactory.decodeStream(new FileInputStream(f), null, o);
+	private static Bitmap decodeStream(StreamSource source,
+			BitmapFactory.Options options) throws FileNotFoundException {
+		InputStream in = source.open();
+		try {
+			return BitmapFactory.decodeStream(in, null, options);
+		} finally {
+			IOUtilities.closeStream(in);
+		}
+	}
 
-		int angle = 0;
+	/**
+	 * Decodes again after an {@link OutOfMemoryError}, giving up a little
+	 * more quality on every step: the pool and the caches are trimmed, then
+	 * the sample size is doubled up to {@link #MAX_SAMPLE_RETRIES} times,
+	 * then the pixels are decoded at 16 bits, and last only the center
+	 * region that fits into half the free heap is decoded. Each step keeps
+	 * the reductions of the steps before.
+	 *
+	 * @return the first bitmap that fits, or null when none does
+	 */
+	private static Bitmap decodeDegraded(StreamSource source,
+			BitmapFactory.Options options, int sourceWidth, int sourceHeight,
+			DecodeTrace trace) throws FileNotFoundException {
+		if (options.inBitmap != null) {
+			sBitmapPool.put(options.inBitmap);
+			options.inBitmap = null;
+		}
+		MemoryTrimmer.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+		options.inSampleSize = Math.max(1, options.inSampleSize);
+		for (int i = 0; i < MAX_SAMPLE_RETRIES; i++) {
+			options.inSampleSize *= 2;
+			trace.degraded(DecodeMetrics.DEGRADE_SAMPLE_SIZE);
+			Bitmap bitmap = decodeIfFits(source, options);
+			if (bitmap != null) {
+				return bitmap;
+			}
+		}
+		if (options.inPreferredConfig == null
+				|| options.inPreferredConfig == Config.ARGB_8888) {
+			// ignored by the decoder for images with alpha
+			options.inPreferredConfig = Config.RGB_565;
+			trace.degraded(DecodeMetrics.DEGRADE_CONFIG);
+			Bitmap bitmap = decodeIfFits(source, options);
+			if (bitmap != null) {
+				return bitmap;
+			}
+		}
+		trace.degraded(DecodeMetrics.DEGRADE_REGION);
+		return decodeCenterRegion(source, options, sourceWidth, sourceHeight);
+	}
+
+	/**
+	 * @return decoded bitmap, or null when it does not fit in memory
+	 */
+	private static Bitmap decodeIfFits(StreamSource source,
+			BitmapFactory.Options options) throws FileNotFoundException {
 		try {
-			ExifInterface exif = new ExifInterface(selectedImage);
-			int orientation = exif.getAttributeInt(
-					ExifInterface.TAG_ORIENTATION,
-					ExifInterface.ORIENTATION_NORMAL);
-
-			if (orientation == ExifInterface.ORIENTATION_ROTATE_90)
-				angle = 90;
-			else if (orientation == ExifInterface.ORIENTATION_ROTATE_180)
-				angle = 180;
-			else if (orientation == ExifInterface.ORIENTATION_ROTATE_270)
-				angle = 270;
-
-			Log.v("KM", "Angle =" + angle);
-		} catch (IOException e) {
-			// no-op
+			return decodeStream(source, options);
+		} catch (OutOfMemoryError e) {
+			return null;
 		}
+	}
 
-		int REQUIRED_SIZE = (width < height) ? width : height;
+	/**
+	 * Decodes the largest region around the center, in the aspect ratio of
+	 * the image, that takes at most half the free heap with the sample size
+	 * and config in {@code options}.
+	 *
+	 * @return region, or null when it does not fit either or the format has
+	 *         no region decoder
+	 */
+	private static Bitmap decodeCenterRegion(StreamSource source,
+			BitmapFactory.Options options, int sourceWidth, int sourceHeight)
+			throws FileNotFoundException {
+		int sampleSize = options.inSampleSize;
+		int bytesPerPixel = options.inPreferredConfig == Config.RGB_565 ? 2 : 4;
+		long sampledBytes = (long) ((sourceWidth + sampleSize - 1) / sampleSize)
+				* ((sourceHeight + sampleSize - 1) / sampleSize) * bytesPerPixel;
+		long budget = availableHeapBytes() / 2;
+		if (sourceWidth <= 0 || sourceHeight <= 0 || budget <= 0) {
+			return null;
+		}
+		double share = Math.min(1d, Math.sqrt(budget / (double) sampledBytes));
+		int width = Math.max(1, (int) (sourceWidth * share));
+		int height = Math.max(1, (int) (sourceHeight * share));
+		int left = (sourceWidth - width) / 2;
+		int top = (sourceHeight - height) / 2;
+		InputStream in = source.open();
+		BitmapRegionDecoder decoder = null;
+		try {
+			decoder = BitmapRegionDecoder.newInstance(in, false);
+			return decoder.decodeRegion(new Rect(left, top, left + width, top
+					+ height), options);
+		} catch (IOException e) {
+			return null;
+		} catch (OutOfMemoryError e) {
+			return null;
+		} finally {
+			if (decoder != null) {
+				decoder.recycle();
+			}
+			IOUtilities.closeStream(in);
+		}
+	}
 
-		// Find the correct scale value. It should be the power of 2.
-		int width_tmp = o.outWidth, height_tmp = o.outHeight;
-		int scale = 1;
-		while (true) {
-			if (width_tmp / 2 < REQUIRED_SIZE || height_tmp / 2 < REQUIRED_SIZE)
-				break;
-			width_tmp /= 2;
-			height_tmp /= 2;
-			scale *= 2;
+	/**
+	 * Reports the decode phase and its outcome.
+	 */
+	private static void reportDecode(DecodeTrace trace, int sourceWidth,
+			int sourceHeight, BitmapFactory.Options options, Bitmap bitmap) {
+		trace.lap(DecodeMetrics.PHASE_DECODE);
+		if (bitmap == null) {
+			trace.failed(DecodeMetrics.FAILURE_UNDECODABLE, null);
+		} else {
+			trace.decoded(sourceWidth, sourceHeight, options.inSampleSize,
+					bitmap, bitmap == options.inBitmap);
 		}
-		// Decode with inSampleSize
-		BitmapFactory.Options o2 = new BitmapFactory.Options();
-		o2.inSampleSize = scale;
-		Bitmap bitmap = BitmapFactory.decodeStream(new FileInputStream(f),
-				null, o2);
+	}
 
-		if (angle != 0) {
-			Matrix matrix = new Matrix();
-			matrix.postRotate(angle);
-			Bitmap bmp = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
-					bitmap.getHeight(), matrix, true);
-			bitmap.recycle();
-			bitmap = bmp;
+	/**
+	 * Turns a decoded bitmap upright per its EXIF orientation with the
+	 * lossless {@link Orientation} kernels. Orientations that keep the size
+	 * are fixed in place when the bitmap is mutable and owned. The others
+	 * release an owned source once its pixels are read and fill a pooled
+	 * bitmap strip by strip, so at most the pixel array and one bitmap are
+	 * alive at a time besides a small strip buffer.
+	 *
+	 * @param owned
+	 *            whether the calling transform decoded the bitmap itself, so
+	 *            it may be changed or pooled; false for bitmaps of the
+	 *            caller, which are left untouched
+	 */
+	private static Bitmap rotateUpright(Bitmap bitmap, int orientation,
+			boolean owned, DecodeTrace trace) {
+		if (bitmap == null || orientation <= Orientation.NORMAL
+				|| orientation > Orientation.ROTATE_270) {
+			return bitmap;
 		}
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int[] pixels = new int[width * height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		if (!Orientation.swapsSides(orientation) && owned
+				&& bitmap.isMutable()) {
+			Orientation.applyInPlace(pixels, width, height, orientation, true);
+			bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+			trace.lap(DecodeMetrics.PHASE_ROTATE);
+			return bitmap;
+		}
+		Config config = bitmap.getConfig() != null ? bitmap.getConfig()
+				: Config.ARGB_8888;
+		if (owned) {
+			release(bitmap);
+		}
+		boolean swap = Orientation.swapsSides(orientation);
+		int uprightWidth = swap ? height : width;
+		int uprightHeight = swap ? width : height;
+		Bitmap result = sBitmapPool.getDirty(uprightWidth, uprightHeight,
+				config);
+		if (result == null) {
+			result = Bitmap.createBitmap(uprightWidth, uprightHeight, config);
+		}
+		int stripRows = Math.max(1,
+				Math.min(uprightHeight, UPRIGHT_STRIP_PIXELS / uprightWidth));
+		int[] strip = new int[stripRows * uprightWidth];
+		for (int from = 0; from < uprightHeight; from += stripRows) {
+			int to = Math.min(uprightHeight, from + stripRows);
+			Orientation.applyRows(pixels, width, height, orientation, strip,
+					from, to, true);
+			result.setPixels(strip, 0, uprightWidth, 0, from, uprightWidth, to
+					- from);
+		}
+		trace.lap(DecodeMetrics.PHASE_ROTATE);
+		return result;
+	}
 
-		return bitmap;
+	private static InputStream openBuffered(String path)
+			throws FileNotFoundException {
+		return new BufferedInputStream(new FileInputStream(path),
+				IOUtilities.IO_BUFFER_SIZE);
 	}
-	
-	public static Bitmap getBitmapFromPath(String path) {
-		InputStream is = null;
-		Bitmap bitmap = null;
+
+	/**
+	 * Opens a file for an entry point, reporting the open phase or the
+	 * missing file.
+	 */
+	private static InputStream openBuffered(String path, DecodeTrace trace)
+			throws FileNotFoundException {
 		try {
-			is = new FileInputStream(path);
+			InputStream in = openBuffered(path);
+			trace.lap(DecodeMetrics.PHASE_OPEN);
+			return in;
+		} catch (FileNotFoundException e) {
+			trace.failed(DecodeMetrics.FAILURE_NOT_FOUND, e);
+			throw e;
+		}
+	}
 
-			BitmapFactory.Options options = new BitmapFactory.Options();
-			options.inJustDecodeBounds = true;
-			bitmap = BitmapFactory.decodeStream(is, null, options);
+	/**
+	 * Rewinds the stream to its mark, reopening the file when the mark has
+	 * been invalidated by reading past {@link #HEADER_MARK_LIMIT}.
+	 */
+	private static InputStream rewind(InputStream in, String path)
+			throws FileNotFoundException {
+		try {
+			in.reset();
+			return in;
+		} catch (IOException e) {
+			IOUtilities.closeStream(in);
+			return openBuffered(path);
+		}
+	}
 
-			BitmapFactory.Options newImageOptions = new BitmapFactory.Options();
-			if (options.outHeight > 1000 || options.outWidth > 1000) {
-				newImageOptions.inSampleSize = 2;
+	private static int sampleSize(BitmapFactory.Options options, int width,
+			int height, int orientation, int sampleMode) {
+		switch (sampleMode) {
+		case SAMPLE_FIT:
+			return calculateInSampleSize(options, width, height, orientation);
+		case SAMPLE_POWER_OF_TWO:
+			return ImageMath.powerOfTwoSampleSize(options.outWidth,
+					options.outHeight, width, height);
+		case SAMPLE_HALVE_LARGE:
+			if (options.outHeight > LARGE_IMAGE_SIZE
+					|| options.outWidth > LARGE_IMAGE_SIZE) {
+				return 2;
 			}
+			return 1;
+		default:
+			return 1;
+		}
+	}
 
-			IOUtilities.closeStream(is);
-			is = new FileInputStream(path);
+	public static int calculateInSampleSize(
+			final BitmapFactory.Options bitmapFactoryOptions, final int width,
+			final int height, final int attributeInt) {
+		return ImageMath.calculateInSampleSize(bitmapFactoryOptions.outWidth,
+				bitmapFactoryOptions.outHeight, width, height, attributeInt);
+	}
+	public static Bitmap decodeUri(String selectedImage, int width, int height)
+			throws FileNotFoundException {
+		String cacheKey = BitmapMemoryCache.key(selectedImage, width, height,
+				Config.ARGB_8888, "power2-rotated");
+		DecodeTrace trace = new DecodeTrace("decodeUri");
+		Bitmap cached = cachedBitmap(cacheKey, trace);
+		if (cached != null) {
+			return cached;
+		}
+		// no context here, so only use the disk cache once it has been opened
+		DiskBitmapCache diskCache = DiskBitmapCache.peekInstance();
+		if (diskCache != null) {
+			cached = diskCachedBitmap(diskCache, cacheKey, trace);
+			if (cached != null) {
+				return cached;
+			}
+		}
 
-			bitmap = BitmapFactory.decodeStream(is, null, newImageOptions);
+		Bitmap bitmap = decodeFile(selectedImage, width, height,
+				SAMPLE_POWER_OF_TWO, true, trace);
+		cache(cacheKey, bitmap, trace);
+		if (diskCache != null && !trace.isDegraded()) {
+			diskCache.put(cacheKey, bitmap);
+		}
 
+		return bitmap;
+	}
+	
+	public static Bitmap getBitmapFromPath(String path) {
+		String cacheKey = BitmapMemoryCache.key(path, 0, 0, Config.ARGB_8888,
+				"sample2");
+		DecodeTrace trace = new DecodeTrace("getBitmapFromPath");
+		Bitmap bitmap = cachedBitmap(cacheKey, trace);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		try {
+			bitmap = decodeFile(path, 0, 0, SAMPLE_HALVE_LARGE, false, trace);
+			cache(cacheKey, bitmap, trace);
 			return bitmap;
 		} catch (FileNotFoundException e) {
 			// Logger.log("StillsActivity", "msg: " + e.getMessage());
-		} finally {
-			IOUtilities.closeStream(is);
 		}
 		return null;
 	}
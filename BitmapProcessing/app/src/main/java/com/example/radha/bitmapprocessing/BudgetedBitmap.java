@@ -0,0 +1,71 @@
+package com.example.radha.bitmapprocessing;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Result of {@link BitmapUtil#decodeWithinBudget}: the bitmap together with
+ * the decode parameters that were chosen to fit it into the budget.
+ */
+public final class BudgetedBitmap {
+	private final Bitmap mBitmap;
+	private final int mSampleSize;
+	private final Config mConfig;
+	private final int mSourceWidth;
+	private final int mSourceHeight;
+
+	BudgetedBitmap(Bitmap bitmap, int sampleSize, Config config,
+			int sourceWidth, int sourceHeight) {
+		mBitmap = bitmap;
+		mSampleSize = sampleSize;
+		mConfig = config;
+		mSourceWidth = sourceWidth;
+		mSourceHeight = sourceHeight;
+	}
+
+	public Bitmap getBitmap() {
+		return mBitmap;
+	}
+
+	/**
+	 * @return inSampleSize the image was decoded with
+	 */
+	public int getSampleSize() {
+		return mSampleSize;
+	}
+
+	/**
+	 * @return pixel config the image was decoded to
+	 */
+	public Config getConfig() {
+		return mConfig;
+	}
+
+	/**
+	 * @return width of the encoded image, before sampling and rotation
+	 */
+	public int getSourceWidth() {
+		return mSourceWidth;
+	}
+
+	/**
+	 * @return height of the encoded image, before sampling and rotation
+	 */
+	public int getSourceHeight() {
+		return mSourceHeight;
+	}
+
+	/**
+	 * @return pixel bytes of the decoded bitmap
+	 */
+	public int getByteCount() {
+		return mBitmap.getByteCount();
+	}
+
+	@Override
+	public String toString() {
+		return "BudgetedBitmap[" + mSourceWidth + "x" + mSourceHeight + " /"
+				+ mSampleSize + " " + mConfig + " " + getByteCount()
+				+ " bytes]";
+	}
+}
@@ -0,0 +1,326 @@
+package com.example.radha.bitmapprocessing;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Default {@link DecodeMetrics}: aggregates everything into fixed arrays of
+ * atomic counters, so recording never blocks and, past the first call of an
+ * entry point, only allocates to describe failures.
+ * <p>
+ * Phase latencies go into power of two buckets of microseconds, which
+ * bounds the error of a percentile to a factor of two at a constant cost
+ * per sample. Sample sizes are bucketed the same way. Decodes and failures
+ * are also counted per entry point. {@link #dump} prints a summary, e.g.
+ * from a debug menu or {@code dumpsys}.
+ */
+public class DecodeHistogram implements DecodeMetrics {
+	/** Bucket i counts latencies below 2^i microseconds. */
+	private static final int LATENCY_BUCKETS = 32;
+	/** Bucket i counts sample size 2^i. */
+	private static final int SAMPLE_BUCKETS = 8;
+
+	private static final String[] PHASE_NAMES = { "open", "bounds", "exif",
+			"decode", "rotate", "scale" };
+	private static final String[] CACHE_NAMES = { "memory", "disk" };
+	private static final String[] FAILURE_NAMES = { "not found",
+			"out of memory", "undecodable" };
+	private static final String[] DEGRADE_NAMES = { "sample size", "config",
+			"region" };
+
+	private final AtomicLongArray mLatencies = new AtomicLongArray(
+			PHASE_COUNT * LATENCY_BUCKETS);
+	private final AtomicLongArray mPhaseNanos = new AtomicLongArray(
+			PHASE_COUNT);
+	private final AtomicLongArray mPhaseMaxNanos = new AtomicLongArray(
+			PHASE_COUNT);
+	private final AtomicLongArray mSampleSizes = new AtomicLongArray(
+			SAMPLE_BUCKETS);
+	/** Hits and misses per cache, at {@code cache * 2 + (hit ? 1 : 0)}. */
+	private final AtomicLongArray mCacheLookups = new AtomicLongArray(
+			CACHE_COUNT * 2);
+	private final AtomicLongArray mFailures = new AtomicLongArray(
+			FAILURE_COUNT);
+	private final AtomicLongArray mDegraded = new AtomicLongArray(
+			DEGRADE_COUNT);
+	private final AtomicLong mDecodes = new AtomicLong();
+	private final AtomicLong mReused = new AtomicLong();
+	private final AtomicLong mAllocatedBytes = new AtomicLong();
+	private final AtomicLong mSourcePixels = new AtomicLong();
+	private final AtomicLong mDecodedPixels = new AtomicLong();
+	/** Decodes, then failures per cause, by entry point. */
+	private final ConcurrentHashMap<String, AtomicLongArray> mCalls = new ConcurrentHashMap<String, AtomicLongArray>();
+	private volatile String mLastFailure;
+
+	@Override
+	public void onPhase(String call, int phase, long nanos) {
+		long micros = nanos / 1000;
+		int bucket = Math.min(LATENCY_BUCKETS - 1,
+				64 - Long.numberOfLeadingZeros(micros));
+		mLatencies.incrementAndGet(phase * LATENCY_BUCKETS + bucket);
+		mPhaseNanos.addAndGet(phase, nanos);
+		long max;
+		do {
+			max = mPhaseMaxNanos.get(phase);
+		} while (nanos > max && !mPhaseMaxNanos.compareAndSet(phase, max, nanos));
+	}
+
+	@Override
+	public void onCacheLookup(String call, int cache, boolean hit) {
+		mCacheLookups.incrementAndGet(cache * 2 + (hit ? 1 : 0));
+	}
+
+	@Override
+	public void onDecoded(String call, int sourceWidth, int sourceHeight,
+			int sampleSize, int width, int height, long bytes, boolean reused) {
+		mDecodes.incrementAndGet();
+		if (reused) {
+			mReused.incrementAndGet();
+		} else {
+			mAllocatedBytes.addAndGet(bytes);
+		}
+		mSourcePixels.addAndGet((long) sourceWidth * sourceHeight);
+		mDecodedPixels.addAndGet((long) width * height);
+		int bucket = Math.min(SAMPLE_BUCKETS - 1,
+				31 - Integer.numberOfLeadingZeros(Math.max(1, sampleSize)));
+		mSampleSizes.incrementAndGet(bucket);
+		callCounters(call).incrementAndGet(0);
+	}
+
+	@Override
+	public void onDegraded(String call, int step) {
+		mDegraded.incrementAndGet(step);
+	}
+
+	@Override
+	public void onFailure(String call, int cause, Throwable error) {
+		mFailures.incrementAndGet(cause);
+		callCounters(call).incrementAndGet(1 + cause);
+		mLastFailure = call + ": " + FAILURE_NAMES[cause]
+				+ (error != null ? " (" + error + ")" : "");
+	}
+
+	private AtomicLongArray callCounters(String call) {
+		AtomicLongArray counters = mCalls.get(call);
+		if (counters == null) {
+			AtomicLongArray created = new AtomicLongArray(1 + FAILURE_COUNT);
+			counters = mCalls.putIfAbsent(call, created);
+			if (counters == null) {
+				counters = created;
+			}
+		}
+		return counters;
+	}
+
+	/**
+	 * @return number of measurements of a phase
+	 */
+	public long getCount(int phase) {
+		long count = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			count += mLatencies.get(phase * LATENCY_BUCKETS + i);
+		}
+		return count;
+	}
+
+	/**
+	 * Estimates a latency percentile of a phase from its buckets.
+	 *
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return upper bound of the bucket holding the percentile in
+	 *         microseconds, at most the slowest measurement; 0 when the
+	 *         phase has not been measured
+	 */
+	public long getPercentileMicros(int phase, double percentile) {
+		long count = getCount(phase);
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100d));
+		long max = mPhaseMaxNanos.get(phase) / 1000;
+		long seen = 0;
+		for (int i = 0; i < LATENCY_BUCKETS - 1; i++) {
+			seen += mLatencies.get(phase * LATENCY_BUCKETS + i);
+			if (seen >= rank) {
+				return Math.min(1L << i, max);
+			}
+		}
+		return max;
+	}
+
+	public long getDecodes() {
+		return mDecodes.get();
+	}
+
+	/**
+	 * @return pixel bytes of the decodes that did not reuse a pooled bitmap
+	 */
+	public long getAllocatedBytes() {
+		return mAllocatedBytes.get();
+	}
+
+	/**
+	 * @param cache
+	 *            {@link #CACHE_MEMORY} or {@link #CACHE_DISK}
+	 */
+	public long getCacheHits(int cache) {
+		return mCacheLookups.get(cache * 2 + 1);
+	}
+
+	public long getCacheMisses(int cache) {
+		return mCacheLookups.get(cache * 2);
+	}
+
+	/**
+	 * @param cause
+	 *            one of the {@code FAILURE_*} constants
+	 */
+	public long getFailures(int cause) {
+		return mFailures.get(cause);
+	}
+
+	/**
+	 * @param step
+	 *            one of the {@code DEGRADE_*} constants
+	 */
+	public long getDegraded(int step) {
+		return mDegraded.get(step);
+	}
+
+	/**
+	 * Clears every counter, e.g. to measure one screen at a time.
+	 */
+	public void reset() {
+		for (int i = 0; i < mLatencies.length(); i++) {
+			mLatencies.set(i, 0);
+		}
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			mPhaseNanos.set(i, 0);
+			mPhaseMaxNanos.set(i, 0);
+		}
+		for (int i = 0; i < SAMPLE_BUCKETS; i++) {
+			mSampleSizes.set(i, 0);
+		}
+		for (int i = 0; i < mCacheLookups.length(); i++) {
+			mCacheLookups.set(i, 0);
+		}
+		for (int i = 0; i < FAILURE_COUNT; i++) {
+			mFailures.set(i, 0);
+		}
+		for (int i = 0; i < DEGRADE_COUNT; i++) {
+			mDegraded.set(i, 0);
+		}
+		mDecodes.set(0);
+		mReused.set(0);
+		mAllocatedBytes.set(0);
+		mSourcePixels.set(0);
+		mDecodedPixels.set(0);
+		mCalls.clear();
+		mLastFailure = null;
+	}
+
+	/**
+	 * Prints the phase latencies, decode volume, sample sizes, cache hit
+	 * rates, degraded decodes and failures. Counters keep running while they
+	 * are printed, so the numbers of a busy app may be off by the decodes in
+	 * flight.
+	 */
+	public void dump(PrintWriter writer) {
+		writer.println("Decode metrics");
+		writer.println(String.format(Locale.US,
+				"  %-7s %8s %9s %9s %9s %9s %9s", "phase", "count",
+				"mean(us)", "p50(us)", "p90(us)", "p99(us)", "max(us)"));
+		for (int phase = 0; phase < PHASE_COUNT; phase++) {
+			long count = getCount(phase);
+			if (count == 0) {
+				continue;
+			}
+			writer.println(String.format(Locale.US,
+					"  %-7s %8d %9d %9d %9d %9d %9d", PHASE_NAMES[phase], count,
+					mPhaseNanos.get(phase) / count / 1000,
+					getPercentileMicros(phase, 50),
+					getPercentileMicros(phase, 90),
+					getPercentileMicros(phase, 99),
+					mPhaseMaxNanos.get(phase) / 1000));
+		}
+		long decodes = mDecodes.get();
+		writer.println(String.format(Locale.US,
+				"  decodes %d, reused %d, allocated %d bytes", decodes,
+				mReused.get(), mAllocatedBytes.get()));
+		if (decodes > 0) {
+			writer.println(String.format(Locale.US,
+					"  mean source %d px, mean decoded %d px",
+					mSourcePixels.get() / decodes, mDecodedPixels.get()
+							/ decodes));
+		}
+		StringBuilder samples = new StringBuilder("  inSampleSize");
+		for (int i = 0; i < SAMPLE_BUCKETS; i++) {
+			long count = mSampleSizes.get(i);
+			if (count > 0) {
+				samples.append(' ').append(1 << i)
+						.append(i == SAMPLE_BUCKETS - 1 ? "+" : "").append(':')
+						.append(count);
+			}
+		}
+		writer.println(samples);
+		for (int cache = 0; cache < CACHE_COUNT; cache++) {
+			long hits = getCacheHits(cache);
+			long lookups = hits + getCacheMisses(cache);
+			if (lookups > 0) {
+				writer.println(String.format(Locale.US,
+						"  %s cache %d/%d hits (%.1f%%)", CACHE_NAMES[cache],
+						hits, lookups, hits * 100f / lookups));
+			}
+		}
+		for (int cause = 0; cause < FAILURE_COUNT; cause++) {
+			long count = mFailures.get(cause);
+			if (count > 0) {
+				writer.println("  failed " + FAILURE_NAMES[cause] + ": " + count);
+			}
+		}
+		for (int step = 0; step < DEGRADE_COUNT; step++) {
+			long count = mDegraded.get(step);
+			if (count > 0) {
+				writer.println("  degraded " + DEGRADE_NAMES[step] + ": "
+						+ count);
+			}
+		}
+		String lastFailure = mLastFailure;
+		if (lastFailure != null) {
+			writer.println("  last failure " + lastFailure);
+		}
+		Map<String, AtomicLongArray> calls = new TreeMap<String, AtomicLongArray>(
+				mCalls);
+		for (Map.Entry<String, AtomicLongArray> entry : calls.entrySet()) {
+			AtomicLongArray counters = entry.getValue();
+			long failures = 0;
+			for (int cause = 0; cause < FAILURE_COUNT; cause++) {
+				failures += counters.get(1 + cause);
+			}
+			writer.println("  " + entry.getKey() + ": " + counters.get(0)
+					+ " decoded, " + failures + " failed");
+		}
+		writer.flush();
+	}
+
+	/**
+	 * @return the output of {@link #dump(PrintWriter)}
+	 */
+	public String dump() {
+		StringWriter out = new StringWriter();
+		dump(new PrintWriter(out));
+		return out.toString();
+	}
+
+	@Override
+	public String toString() {
+		return dump();
+	}
+}
@@ -0,0 +1,106 @@
+package com.example.radha.bitmapprocessing;
+
+/**
+ * Receives measurements from every {@link BitmapUtil} entry point, see
+ * {@link BitmapUtil#setDecodeMetrics}. Calls arrive on the decoding threads,
+ * often several at a time, so implementations must be thread safe and
+ * cheap; {@link DecodeHistogram} is the default.
+ * <p>
+ * Every method gets the name of the entry point, such as
+ * {@code "decodeToSize"}, so the numbers can be told apart per call site.
+ */
+public interface DecodeMetrics {
+	/** Opening the file or content stream. */
+	int PHASE_OPEN = 0;
+	/** The bounds pass, including rewinding the stream. */
+	int PHASE_BOUNDS = 1;
+	/** Reading the EXIF orientation or thumbnail. */
+	int PHASE_EXIF = 2;
+	/** Decoding the pixels. */
+	int PHASE_DECODE = 3;
+	/** Turning the decoded pixels upright. */
+	int PHASE_ROTATE = 4;
+	/** Scaling or fitting into a view sized bitmap. */
+	int PHASE_SCALE = 5;
+	int PHASE_COUNT = 6;
+
+	/** {@link BitmapMemoryCache}. */
+	int CACHE_MEMORY = 0;
+	/** {@link DiskBitmapCache}. */
+	int CACHE_DISK = 1;
+	int CACHE_COUNT = 2;
+
+	/** The file or uri could not be opened. */
+	int FAILURE_NOT_FOUND = 0;
+	/** The heap could not hold a bitmap. */
+	int FAILURE_OUT_OF_MEMORY = 1;
+	/** The decoder returned no bitmap, e.g. for a corrupt or unknown format. */
+	int FAILURE_UNDECODABLE = 2;
+	int FAILURE_COUNT = 3;
+
+	/** Decoded again at twice the sample size after running out of memory. */
+	int DEGRADE_SAMPLE_SIZE = 0;
+	/** Decoded again at 16 bits per pixel after running out of memory. */
+	int DEGRADE_CONFIG = 1;
+	/**
+	 * Decoded only the center region that fits after running out of memory.
+	 */
+	int DEGRADE_REGION = 2;
+	int DEGRADE_COUNT = 3;
+
+	/**
+	 * @param phase
+	 *            one of the {@code PHASE_*} constants
+	 * @param nanos
+	 *            wall time the phase took
+	 */
+	void onPhase(String call, int phase, long nanos);
+
+	/**
+	 * @param cache
+	 *            {@link #CACHE_MEMORY} or {@link #CACHE_DISK}
+	 * @param hit
+	 *            whether the cache held the bitmap
+	 */
+	void onCacheLookup(String call, int cache, boolean hit);
+
+	/**
+	 * Reports a successful pixel decode, before any rotation or scaling.
+	 *
+	 * @param sourceWidth
+	 *            width of the encoded image
+	 * @param sourceHeight
+	 *            height of the encoded image
+	 * @param sampleSize
+	 *            {@code inSampleSize} used by the decoder
+	 * @param width
+	 *            width of the decoded bitmap
+	 * @param height
+	 *            height of the decoded bitmap
+	 * @param bytes
+	 *            pixel bytes of the decoded bitmap
+	 * @param reused
+	 *            whether the pixels went into a pooled bitmap, so no new
+	 *            memory was allocated
+	 */
+	void onDecoded(String call, int sourceWidth, int sourceHeight,
+			int sampleSize, int width, int height, long bytes, boolean reused);
+
+	/**
+	 * Reports a step down the ladder a decode takes after running out of
+	 * memory. A decode can take several steps before it succeeds or fails.
+	 *
+	 * @param step
+	 *            one of the {@code DEGRADE_*} constants
+	 */
+	void onDegraded(String call, int step);
+
+	/**
+	 * @param cause
+	 *            one of the {@code FAILURE_*} constants
+	 * @param error
+	 *            exception or error behind the failure, null for
+	 *            {@link #FAILURE_UNDECODABLE}
+	 */
+	void onFailure(String call, int cause, Throwable error);
+}
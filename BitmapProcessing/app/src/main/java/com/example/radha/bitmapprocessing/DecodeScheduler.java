@@ -0,0 +1,333 @@
+package com.example.radha.bitmapprocessing;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs bitmap decodes off the UI thread on a bounded pool sized to the
+ * number of cores and delivers the results on the main thread.
+ * <p>
+ * Requests for visible content run before prefetches. Each request can be
+ * bound to a target, typically the view that displays the result; a newer
+ * request for the same target cancels the older one, so a recycled view
+ * never receives a stale bitmap.
+ */
+public class DecodeScheduler {
+	private static final String TAG = "DecodeScheduler";
+
+	/** Content that is on screen now. */
+	public static final int PRIORITY_VISIBLE = 0;
+	/** Content that is likely to be shown soon. */
+	public static final int PRIORITY_PREFETCH = 1;
+
+	private static final int KEEP_ALIVE_SECONDS = 30;
+
+	private static DecodeScheduler sInstance;
+
+	/**
+	 * Receives the result of a request on the main thread. Not called for
+	 * cancelled requests.
+	 */
+	public interface Callback {
+		/**
+		 * @param bitmap
+		 *            decoded bitmap, or null when the decode failed
+		 */
+		void onDecoded(Bitmap bitmap);
+	}
+
+	private final ThreadPoolExecutor mExecutor;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final Map<Object, Request> mRequestsByTarget = new WeakHashMap<Object, Request>();
+	private final AtomicLong mSequence = new AtomicLong();
+
+	/**
+	 * @param threads
+	 *            maximum number of decodes running at the same time
+	 */
+	public DecodeScheduler(int threads) {
+		mExecutor = new ThreadPoolExecutor(threads, threads,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(), new DecodeThreadFactory());
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the shared scheduler with one thread per core.
+	 */
+	public static synchronized DecodeScheduler getInstance() {
+		if (sInstance == null) {
+			sInstance = new DecodeScheduler(Runtime.getRuntime()
+					.availableProcessors());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Queues a decode.
+	 *
+	 * @param target
+	 *            object the result is for, or null; an earlier request for the
+	 *            same target is cancelled
+	 * @param priority
+	 *            {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}
+	 * @param decoder
+	 *            work run on a worker thread
+	 * @param callback
+	 *            receives the result on the main thread, may be null
+	 * @return handle that can cancel the request
+	 */
+	public Request submit(Object target, int priority,
+			Callable<Bitmap> decoder, Callback callback) {
+		return enqueue(new Request(target, priority,
+				mSequence.getAndIncrement(), decoder, callback));
+	}
+
+	private Request enqueue(Request request) {
+		Object target = request.getTarget();
+		if (target != null) {
+			Request previous;
+			synchronized (mRequestsByTarget) {
+				previous = mRequestsByTarget.put(target, request);
+			}
+			if (previous != null) {
+				previous.cancel();
+			}
+		}
+		mExecutor.execute(request);
+		return request;
+	}
+
+	/**
+	 * Queues a sampled, upright decode of an image file, see
+	 * {@link BitmapUtil#getBitmapFromUri}.
+	 */
+	public Request decodeFile(Object target, int priority, final String path,
+			final int width, final int height, Callback callback) {
+		return submit(target, priority, new Callable<Bitmap>() {
+			@Override
+			public Bitmap call() throws Exception {
+				return BitmapUtil.decodeFile(path, width, height,
+						BitmapUtil.SAMPLE_FIT, true);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Queues a two stage decode of an image file: a quick preview, see
+	 * {@link BitmapUtil#decodePreview}, is delivered first, then the same
+	 * decode as {@link #decodeFile}. Both run in one request, so cancelling
+	 * it, or a newer request for the target, drops whichever stage has not
+	 * been delivered yet.
+	 *
+	 * @param previewCallback
+	 *            receives the preview on the main thread; not called when the
+	 *            preview cannot be decoded
+	 * @param callback
+	 *            receives the full decode on the main thread
+	 */
+	public Request decodeFileProgressive(Object target, int priority,
+			String path, int width, int height, Callback previewCallback,
+			Callback callback) {
+		ProgressiveDecode decode = new ProgressiveDecode(path, width, height,
+				previewCallback);
+		Request request = new Request(target, priority,
+				mSequence.getAndIncrement(), decode, callback);
+		decode.mRequest = request;
+		return enqueue(request);
+	}
+
+	/**
+	 * Queues a decode of a drawable resource.
+	 */
+	public Request decodeResource(Object target, int priority,
+			final Resources resources, final int id, Callback callback) {
+		return submit(target, priority, new Callable<Bitmap>() {
+			@Override
+			public Bitmap call() throws Exception {
+				return BitmapFactory.decodeResource(resources, id);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Cancels the pending request for the target, if any.
+	 */
+	public void cancel(Object target) {
+		Request request;
+		synchronized (mRequestsByTarget) {
+			request = mRequestsByTarget.remove(target);
+		}
+		if (request != null) {
+			request.cancel();
+		}
+	}
+
+	/**
+	 * A queued decode. Requests are ordered by priority, then by submission.
+	 */
+	public final class Request implements Runnable, Comparable<Request> {
+		/** Weak, the target is the key of {@link #mRequestsByTarget}. */
+		private final WeakReference<Object> mTarget;
+		private final int mPriority;
+		private final long mSequence;
+		private final Callable<Bitmap> mDecoder;
+		private final Callback mCallback;
+		private volatile boolean mCancelled;
+
+		Request(Object target, int priority, long sequence,
+				Callable<Bitmap> decoder, Callback callback) {
+			mTarget = target != null ? new WeakReference<Object>(target) : null;
+			mPriority = priority;
+			mSequence = sequence;
+			mDecoder = decoder;
+			mCallback = callback;
+		}
+
+		/**
+		 * Cancels the request. A request that has not started is skipped, a
+		 * running one finishes but its result is not delivered.
+		 */
+		public void cancel() {
+			mCancelled = true;
+			unbind();
+			mExecutor.remove(this);
+		}
+
+		Object getTarget() {
+			return mTarget != null ? mTarget.get() : null;
+		}
+
+		/**
+		 * Drops the target's entry if it still refers to this request.
+		 */
+		private void unbind() {
+			Object target = getTarget();
+			if (target == null) {
+				return;
+			}
+			synchronized (mRequestsByTarget) {
+				if (mRequestsByTarget.get(target) == this) {
+					mRequestsByTarget.remove(target);
+				}
+			}
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		public int getPriority() {
+			return mPriority;
+		}
+
+		@Override
+		public int compareTo(Request another) {
+			if (mPriority != another.mPriority) {
+				return mPriority < another.mPriority ? -1 : 1;
+			}
+			return mSequence < another.mSequence ? -1
+					: (mSequence == another.mSequence ? 0 : 1);
+		}
+
+		@Override
+		public void run() {
+			if (mCancelled) {
+				return;
+			}
+			Bitmap bitmap = null;
+			try {
+				bitmap = mDecoder.call();
+			} catch (Exception e) {
+				Log.w(TAG, "Decode failed", e);
+			} catch (OutOfMemoryError e) {
+				Log.w(TAG, "Decode ran out of memory", e);
+			}
+			final Bitmap result = bitmap;
+			mMainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					deliver(result);
+				}
+			});
+		}
+
+		private void deliver(Bitmap bitmap) {
+			unbind();
+			if (mCancelled || mCallback == null) {
+				return;
+			}
+			mCallback.onDecoded(bitmap);
+		}
+	}
+
+	private class ProgressiveDecode implements Callable<Bitmap> {
+		private final String mPath;
+		private final int mWidth;
+		private final int mHeight;
+		private final Callback mPreviewCallback;
+		Request mRequest;
+
+		ProgressiveDecode(String path, int width, int height,
+				Callback previewCallback) {
+			mPath = path;
+			mWidth = width;
+			mHeight = height;
+			mPreviewCallback = previewCallback;
+		}
+
+		@Override
+		public Bitmap call() throws Exception {
+			final Bitmap preview = BitmapUtil.decodePreview(mPath, mWidth,
+					mHeight);
+			if (preview != null && !mRequest.isCancelled()) {
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (!mRequest.isCancelled()) {
+							mPreviewCallback.onDecoded(preview);
+						}
+					}
+				});
+			}
+			if (mRequest.isCancelled()) {
+				return null;
+			}
+			return BitmapUtil.decodeFile(mPath, mWidth, mHeight,
+					BitmapUtil.SAMPLE_FIT, true);
+		}
+	}
+
+	private static class DecodeThreadFactory implements ThreadFactory {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "decode-" + mCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.example.radha.bitmapprocessing;
+
+import android.graphics.Bitmap;
+
+/**
+ * Times one call of a {@link BitmapUtil} entry point phase by phase and
+ * forwards the measurements to the installed {@link DecodeMetrics}. Each
+ * {@link #lap} reports the time since the previous one, so the phases are
+ * measured back to back without any bookkeeping at the call sites. Does
+ * nothing but read the clock while no metrics are installed.
+ */
+final class DecodeTrace {
+	private final DecodeMetrics mMetrics;
+	private final String mCall;
+	private long mMark;
+	private boolean mDegraded;
+
+	DecodeTrace(String call) {
+		mMetrics = BitmapUtil.getDecodeMetrics();
+		mCall = call;
+		mMark = System.nanoTime();
+	}
+
+	/**
+	 * Reports the time since the last lap, or since the trace started, as
+	 * the given phase.
+	 */
+	void lap(int phase) {
+		long now = System.nanoTime();
+		if (mMetrics != null) {
+			mMetrics.onPhase(mCall, phase, now - mMark);
+		}
+		mMark = now;
+	}
+
+	/**
+	 * Starts the next lap now, leaving the time since the last one
+	 * unreported, e.g. while the call waited for memory.
+	 */
+	void restart() {
+		mMark = System.nanoTime();
+	}
+
+	void cacheLookup(int cache, boolean hit) {
+		if (mMetrics != null) {
+			mMetrics.onCacheLookup(mCall, cache, hit);
+		}
+		mMark = System.nanoTime();
+	}
+
+	void decoded(int sourceWidth, int sourceHeight, int sampleSize,
+			Bitmap bitmap, boolean reused) {
+		if (mMetrics != null) {
+			mMetrics.onDecoded(mCall, sourceWidth, sourceHeight,
+					Math.max(1, sampleSize), bitmap.getWidth(),
+					bitmap.getHeight(), bitmap.getByteCount(), reused);
+		}
+	}
+
+	void degraded(int step) {
+		mDegraded = true;
+		if (mMetrics != null) {
+			mMetrics.onDegraded(mCall, step);
+		}
+	}
+
+	/**
+	 * @return whether the call had to lower the quality of its result to fit
+	 *         in memory
+	 */
+	boolean isDegraded() {
+		return mDegraded;
+	}
+
+	void failed(int cause, Throwable error) {
+		if (mMetrics != null) {
+			mMetrics.onFailure(mCall, cause, error);
+		}
+	}
+}
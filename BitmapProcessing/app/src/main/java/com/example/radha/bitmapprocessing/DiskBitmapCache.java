@@ -0,0 +1,575 @@
+package com.example.radha.bitmapprocessing;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent LRU cache of already sampled and rotated decodes, stored in the
+ * application cache directory.
+ * <p>
+ * Every change is recorded in a journal file. An entry is marked
+ * {@code DIRTY} before its file is written and {@code CLEAN} once the file has
+ * been synced and renamed into place, so entries left half written by a
+ * crash are discarded the next time the cache is opened. The total size of
+ * the entry files is trimmed to a byte budget, evicting the least recently
+ * read entries first.
+ * <p>
+ * Entries are compressed and synced on a single background writer thread,
+ * so storing a decode only costs the thread that made it a pixel copy.
+ */
+public class DiskBitmapCache {
+	private static final String TAG = "DiskBitmapCache";
+
+	static final String DIRECTORY_NAME = "bitmaps";
+	static final String JOURNAL_FILE = "journal";
+	static final String JOURNAL_FILE_TMP = "journal.tmp";
+	static final String TMP_SUFFIX = ".tmp";
+
+	private static final String MAGIC = "bitmapprocessing.DiskBitmapCache";
+	private static final String VERSION = "1";
+
+	private static final String CLEAN = "CLEAN";
+	private static final String DIRTY = "DIRTY";
+	private static final String REMOVE = "REMOVE";
+	private static final String READ = "READ";
+
+	/** Default byte budget of the shared cache. */
+	public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+	/** Journal lines not backed by a live entry before it is rewritten. */
+	private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+	private static final int JPEG_QUALITY = 90;
+
+	private static final int KEEP_ALIVE_SECONDS = 30;
+
+	/**
+	 * Writes queued at most; each holds a copy of its bitmap, so further
+	 * puts are dropped rather than piling up copies.
+	 */
+	private static final int MAX_PENDING_WRITES = 8;
+
+	/** How long {@link #close()} waits for queued writes. */
+	private static final int CLOSE_TIMEOUT_SECONDS = 5;
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private static DiskBitmapCache sInstance;
+
+	private final File mDirectory;
+	private final File mJournalFile;
+	private final long mMaxSize;
+
+	/** Entry name to entry, in access order. */
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(
+			0, 0.75f, true);
+	/** Names of the entries queued on or being written by the writer. */
+	private final Set<String> mPendingWrites = new HashSet<String>();
+	private final ExecutorService mWriter;
+	private long mSize;
+	private long mGeneration;
+	private int mRedundantOps;
+	private Writer mJournalWriter;
+
+	/**
+	 * Opens a cache in the given directory, creating it when missing.
+	 *
+	 * @param directory
+	 *            directory owned exclusively by this cache
+	 * @param maxSize
+	 *            byte budget of the cached files
+	 * @throws IOException
+	 *             if the directory or journal cannot be created
+	 */
+	public DiskBitmapCache(File directory, long maxSize) throws IOException {
+		mDirectory = directory;
+		mJournalFile = new File(directory, JOURNAL_FILE);
+		mMaxSize = maxSize;
+		ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread thread = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "disk-cache-writer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		writer.allowCoreThreadTimeOut(true);
+		mWriter = writer;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		if (mJournalFile.exists()) {
+			try {
+				readJournal();
+			} catch (IOException e) {
+				Log.w(TAG, "Journal is corrupt, clearing cache", e);
+				deleteContents();
+			}
+		}
+		deleteOrphans();
+		rebuildJournal();
+		trimToSize();
+	}
+
+	/**
+	 * Returns the shared cache in {@link Context#getCacheDir()}, opening it on
+	 * first use.
+	 *
+	 * @return shared cache, or null when it cannot be opened
+	 */
+	public static synchronized DiskBitmapCache getInstance(Context context) {
+		if (sInstance == null && context != null) {
+			File directory = new File(context.getApplicationContext()
+					.getCacheDir(), DIRECTORY_NAME);
+			try {
+				sInstance = new DiskBitmapCache(directory, DEFAULT_MAX_SIZE);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not open disk cache", e);
+			}
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @return shared cache if one was opened by
+	 *         {@link #getInstance(Context)}, otherwise null
+	 */
+	public static synchronized DiskBitmapCache peekInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * Decodes the entry for the given key.
+	 *
+	 * @param key
+	 *            cache key, see {@link BitmapMemoryCache#key}
+	 * @return cached bitmap or null on a miss
+	 */
+	public Bitmap get(String key) {
+		if (key == null) {
+			return null;
+		}
+		String name = hashKey(key);
+		Entry entry;
+		synchronized (this) {
+			entry = mEntries.get(name);
+			if (entry == null) {
+				return null;
+			}
+			journal(READ, name);
+			mRedundantOps++;
+		}
+		Bitmap bitmap = BitmapFactory.decodeFile(new File(mDirectory, name)
+				.getAbsolutePath());
+		if (bitmap == null) {
+			synchronized (this) {
+				// a put may have replaced the file while it was decoded
+				Entry current = mEntries.get(name);
+				if (current != null
+						&& current.mGeneration == entry.mGeneration) {
+					removeEntry(name);
+				}
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Queues the bitmap to be stored under the given key and returns. The
+	 * pixels are copied first, as the bitmap goes on to be drawn, cached and
+	 * pooled while the write waits. The writer thread compresses the copy
+	 * next to its final location, syncs it and renames it into place, so
+	 * readers never see a partial file. A key already queued is not queued
+	 * again, and nothing is queued while the writer is
+	 * {@link #MAX_PENDING_WRITES} behind.
+	 */
+	public void put(String key, Bitmap bitmap) {
+		if (key == null || bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		final String name = hashKey(key);
+		synchronized (this) {
+			if (mPendingWrites.size() >= MAX_PENDING_WRITES
+					|| !mPendingWrites.add(name)) {
+				return;
+			}
+		}
+		final CompressFormat format = bitmap.hasAlpha() ? CompressFormat.PNG
+				: CompressFormat.JPEG;
+		final Bitmap copy = copyOf(bitmap);
+		if (copy == null) {
+			synchronized (this) {
+				mPendingWrites.remove(name);
+			}
+			return;
+		}
+		try {
+			mWriter.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						write(name, copy, format);
+					} finally {
+						BitmapPool.getInstance().put(copy);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closed
+			BitmapPool.getInstance().put(copy);
+			synchronized (this) {
+				mPendingWrites.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * @return private copy of the pixels for the writer, taken from the pool
+	 *         when possible, or null when the heap cannot hold it
+	 */
+	private static Bitmap copyOf(Bitmap bitmap) {
+		Config config = bitmap.getConfig() != null ? bitmap.getConfig()
+				: Config.ARGB_8888;
+		try {
+			Bitmap copy = BitmapPool.getInstance().getOrCreate(
+					bitmap.getWidth(), bitmap.getHeight(), config);
+			copy.setHasAlpha(bitmap.hasAlpha());
+			new Canvas(copy).drawBitmap(bitmap, 0, 0, null);
+			return copy;
+		} catch (OutOfMemoryError e) {
+			Log.w(TAG, "No memory to copy " + bitmap.getWidth() + "x"
+					+ bitmap.getHeight() + " bitmap, not caching it");
+			return null;
+		}
+	}
+
+	private void write(String name, Bitmap bitmap, CompressFormat format) {
+		File file = new File(mDirectory, name);
+		File tmp = null;
+		synchronized (this) {
+			journal(DIRTY, name);
+		}
+		boolean written = false;
+		try {
+			tmp = File.createTempFile(name, TMP_SUFFIX, mDirectory);
+			FileOutputStream fos = new FileOutputStream(tmp);
+			OutputStream out = new BufferedOutputStream(fos,
+					IOUtilities.IO_BUFFER_SIZE);
+			try {
+				written = bitmap.compress(format, JPEG_QUALITY, out);
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				IOUtilities.closeStream(out);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write " + name, e);
+			written = false;
+		}
+		synchronized (this) {
+			mPendingWrites.remove(name);
+			if (written && tmp.renameTo(file)) {
+				long length = file.length();
+				Entry previous = mEntries.put(name, new Entry(length,
+						++mGeneration));
+				if (previous != null) {
+					mSize -= previous.mSize;
+					mRedundantOps++;
+				}
+				mSize += length;
+				journal(CLEAN, name + ' ' + length);
+			} else {
+				if (tmp != null) {
+					tmp.delete();
+				}
+				removeEntry(name);
+			}
+			trimToSize();
+			compactIfNeeded();
+		}
+	}
+
+	public synchronized void remove(String key) {
+		if (key != null) {
+			removeEntry(hashKey(key));
+		}
+	}
+
+	/**
+	 * Removes every entry and file of the cache.
+	 */
+	public synchronized void clear() {
+		IOUtilities.closeStream(mJournalWriter);
+		mJournalWriter = null;
+		deleteContents();
+		mEntries.clear();
+		mSize = 0;
+		mRedundantOps = 0;
+		try {
+			rebuildJournal();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not rebuild journal", e);
+		}
+	}
+
+	/**
+	 * @return bytes currently held on disk
+	 */
+	public synchronized long size() {
+		return mSize;
+	}
+
+	public long maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Waits a few seconds for the queued writes to finish, then closes the
+	 * journal. Writes still queued are dropped.
+	 */
+	public void close() {
+		mWriter.shutdown();
+		try {
+			if (!mWriter.awaitTermination(CLOSE_TIMEOUT_SECONDS,
+					TimeUnit.SECONDS)) {
+				mWriter.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			mWriter.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			IOUtilities.closeStream(mJournalWriter);
+			mJournalWriter = null;
+		}
+	}
+
+	private void removeEntry(String name) {
+		Entry entry = mEntries.remove(name);
+		if (entry != null) {
+			mSize -= entry.mSize;
+		}
+		new File(mDirectory, name).delete();
+		journal(REMOVE, name);
+		mRedundantOps++;
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+		while (mSize > mMaxSize && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			it.remove();
+			mSize -= eldest.getValue().mSize;
+			new File(mDirectory, eldest.getKey()).delete();
+			journal(REMOVE, eldest.getKey());
+			mRedundantOps++;
+		}
+	}
+
+	private void compactIfNeeded() {
+		if (mRedundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+				&& mRedundantOps >= mEntries.size()) {
+			try {
+				rebuildJournal();
+			} catch (IOException e) {
+				Log.e(TAG, "Could not rebuild journal", e);
+			}
+		}
+	}
+
+	private void journal(String op, String argument) {
+		if (mJournalWriter == null) {
+			return;
+		}
+		try {
+			mJournalWriter.write(op + ' ' + argument + '\n');
+			mJournalWriter.flush();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not append to journal", e);
+		}
+	}
+
+	private void readJournal() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(mJournalFile), US_ASCII),
+				IOUtilities.IO_BUFFER_SIZE);
+		try {
+			if (!MAGIC.equals(reader.readLine())
+					|| !VERSION.equals(reader.readLine())) {
+				throw new IOException("Unexpected journal header");
+			}
+			Set<String> dirty = new HashSet<String>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ");
+				if (parts.length < 2) {
+					throw new IOException("Unexpected journal line: " + line);
+				}
+				String name = parts[1];
+				if (DIRTY.equals(parts[0])) {
+					dirty.add(name);
+				} else if (CLEAN.equals(parts[0]) && parts.length == 3) {
+					dirty.remove(name);
+					long size = Long.parseLong(parts[2]);
+					Entry previous = mEntries.put(name, new Entry(size,
+							++mGeneration));
+					if (previous != null) {
+						mSize -= previous.mSize;
+					}
+					mSize += size;
+				} else if (REMOVE.equals(parts[0])) {
+					dirty.remove(name);
+					Entry previous = mEntries.remove(name);
+					if (previous != null) {
+						mSize -= previous.mSize;
+					}
+				} else if (READ.equals(parts[0])) {
+					mEntries.get(name);
+				} else {
+					throw new IOException("Unexpected journal line: " + line);
+				}
+			}
+			// entries whose write never completed
+			for (String name : dirty) {
+				Entry previous = mEntries.remove(name);
+				if (previous != null) {
+					mSize -= previous.mSize;
+				}
+				new File(mDirectory, name).delete();
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected journal size: " + e.getMessage());
+		} finally {
+			IOUtilities.closeStream(reader);
+		}
+	}
+
+	/**
+	 * Deletes files that are neither the journal nor a clean entry, such as
+	 * temp files of writes interrupted by a crash.
+	 */
+	private void deleteOrphans() {
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.equals(JOURNAL_FILE) && !mEntries.containsKey(name)) {
+				file.delete();
+			}
+		}
+	}
+
+	private void deleteContents() {
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mEntries.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * Writes a journal holding only the live entries and atomically replaces
+	 * the current one.
+	 */
+	private void rebuildJournal() throws IOException {
+		IOUtilities.closeStream(mJournalWriter);
+		File tmp = new File(mDirectory, JOURNAL_FILE_TMP);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(fos,
+				US_ASCII), IOUtilities.IO_BUFFER_SIZE);
+		try {
+			writer.write(MAGIC + '\n' + VERSION + '\n');
+			for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+				writer.write(CLEAN + ' ' + entry.getKey() + ' '
+						+ entry.getValue().mSize + '\n');
+			}
+			writer.flush();
+			fos.getFD().sync();
+		} finally {
+			IOUtilities.closeStream(writer);
+		}
+		if (!tmp.renameTo(mJournalFile)) {
+			throw new IOException("Could not replace " + mJournalFile);
+		}
+		mRedundantOps = 0;
+		mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(mJournalFile, true), US_ASCII));
+	}
+
+	/**
+	 * A clean entry. Every committed file gets the next generation, so a
+	 * reader can tell whether the entry it looked up has been replaced since.
+	 */
+	private static final class Entry {
+		final long mSize;
+		final long mGeneration;
+
+		Entry(long size, long generation) {
+			mSize = size;
+			mGeneration = generation;
+		}
+	}
+
+	/**
+	 * @return file name safe hash of the cache key
+	 */
+	static String hashKey(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(key.getBytes(Charset.forName("UTF-8")));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return String.valueOf(key.hashCode() & 0xffffffffL);
+		}
+	}
+}
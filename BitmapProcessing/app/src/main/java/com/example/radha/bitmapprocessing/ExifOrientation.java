@@ -0,0 +1,492 @@
+package com.example.radha.bitmapprocessing;
+
+import android.media.ExifInterface;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal reader of the EXIF orientation tag. Only the JPEG APP1 segment is
+ * looked at, so the orientation can be read from the head of a stream that
+ * is then rewound and handed to the decoder.
+ * <p>
+ * Files are read through a {@link FileChannel} that only fetches the marker
+ * headers and the APP1 segment. The orientation and the location of the
+ * embedded thumbnail are cached by path, last modified time and size, so
+ * repeated lookups of the same file do not touch the disk again.
+ */
+public final class ExifOrientation {
+	private static final int MARKER_PREFIX = 0xFF;
+	private static final int MARKER_SOI = 0xD8;
+	private static final int MARKER_SOS = 0xDA;
+	private static final int MARKER_EOI = 0xD9;
+	private static final int MARKER_APP1 = 0xE1;
+
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+	private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+
+	private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+	/** Number of files whose orientation is remembered. */
+	private static final int CACHE_SIZE = 256;
+
+	private static final Map<String, CachedHeader> sCache = new LinkedHashMap<String, CachedHeader>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, CachedHeader> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private static final class CachedHeader {
+		final long lastModified;
+		final long length;
+		final Header header;
+
+		CachedHeader(long lastModified, long length, Header header) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.header = header;
+		}
+	}
+
+	/**
+	 * Orientation of a JPEG file and where its EXIF thumbnail is stored.
+	 */
+	public static final class Header {
+		static final Header NONE = new Header(
+				ExifInterface.ORIENTATION_NORMAL, 0, 0);
+
+		private final int mOrientation;
+		private final long mThumbnailOffset;
+		private final int mThumbnailLength;
+
+		Header(int orientation, long thumbnailOffset, int thumbnailLength) {
+			mOrientation = orientation;
+			mThumbnailOffset = thumbnailOffset;
+			mThumbnailLength = thumbnailLength;
+		}
+
+		/**
+		 * @return one of the {@link ExifInterface} {@code ORIENTATION_*}
+		 *         values
+		 */
+		public int getOrientation() {
+			return mOrientation;
+		}
+
+		public boolean hasThumbnail() {
+			return mThumbnailLength > 0;
+		}
+
+		/**
+		 * @return position of the encoded thumbnail in the file
+		 */
+		public long getThumbnailOffset() {
+			return mThumbnailOffset;
+		}
+
+		/**
+		 * @return size of the encoded thumbnail in bytes, 0 when there is none
+		 */
+		public int getThumbnailLength() {
+			return mThumbnailLength;
+		}
+	}
+
+	private ExifOrientation() {
+	}
+
+	/**
+	 * Reads the orientation of an image file. The result is cached until the
+	 * file is modified.
+	 *
+	 * @return one of the {@link ExifInterface} {@code ORIENTATION_*} values,
+	 *         {@link ExifInterface#ORIENTATION_NORMAL} when the file cannot be
+	 *         read, is not a JPEG or has no orientation tag
+	 */
+	public static int read(String path) {
+		return readHeader(path).getOrientation();
+	}
+
+	/**
+	 * Reads the orientation and thumbnail location of an image file. The
+	 * result is cached until the file is modified.
+	 *
+	 * @return header of the file, upright and without a thumbnail when the
+	 *         file cannot be read or is not a JPEG
+	 */
+	public static Header readHeader(String path) {
+		File file = new File(path);
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if (lastModified == 0) {
+			// missing or unreadable
+			return Header.NONE;
+		}
+		synchronized (sCache) {
+			CachedHeader cached = sCache.get(path);
+			if (cached != null && cached.lastModified == lastModified
+					&& cached.length == length) {
+				return cached.header;
+			}
+		}
+		Header header;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			header = readHeader(in.getChannel());
+		} catch (IOException e) {
+			return Header.NONE;
+		} finally {
+			IOUtilities.closeStream(in);
+		}
+		synchronized (sCache) {
+			sCache.put(path, new CachedHeader(lastModified, length, header));
+		}
+		return header;
+	}
+
+	/**
+	 * Reads the header with positioned reads, skipping over every segment
+	 * but APP1 without reading it. The channel position is not changed.
+	 */
+	public static Header readHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		if (!readAt(channel, header, 0, 2)
+				|| (header.get(0) & 0xFF) != MARKER_PREFIX
+				|| (header.get(1) & 0xFF) != MARKER_SOI) {
+			return Header.NONE;
+		}
+		long position = 2;
+		while (true) {
+			if (!readAt(channel, header, position, 4)
+					|| (header.get(0) & 0xFF) != MARKER_PREFIX) {
+				return Header.NONE;
+			}
+			int marker = header.get(1) & 0xFF;
+			if (marker == MARKER_PREFIX) {
+				// fill byte
+				position++;
+				continue;
+			}
+			if (marker == MARKER_SOS || marker == MARKER_EOI) {
+				return Header.NONE;
+			}
+			int length = (header.getShort(2) & 0xFFFF) - 2;
+			if (length < 0) {
+				return Header.NONE;
+			}
+			position += 4;
+			if (marker == MARKER_APP1 && length > EXIF_HEADER.length) {
+				ByteBuffer segment = ByteBuffer.allocate(length);
+				if (!readAt(channel, segment, position, length)) {
+					return Header.NONE;
+				}
+				byte[] data = segment.array();
+				if (startsWith(data, EXIF_HEADER)) {
+					return parse(data, EXIF_HEADER.length, length
+							- EXIF_HEADER.length, position
+							+ EXIF_HEADER.length);
+				}
+			}
+			position += length;
+		}
+	}
+
+	/**
+	 * Reads the encoded EXIF thumbnail of an image file.
+	 *
+	 * @param header
+	 *            header of the same file, see {@link #readHeader(String)}
+	 * @return JPEG data of the thumbnail, or null when there is none or it
+	 *         cannot be read
+	 */
+	public static byte[] readThumbnail(String path, Header header) {
+		if (!header.hasThumbnail()) {
+			return null;
+		}
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(path);
+			int length = header.getThumbnailLength();
+			ByteBuffer thumbnail = ByteBuffer.allocate(length);
+			if (!readAt(in.getChannel(), thumbnail,
+					header.getThumbnailOffset(), length)) {
+				return null;
+			}
+			return thumbnail.array();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			IOUtilities.closeStream(in);
+		}
+	}
+
+	/**
+	 * Forgets every cached orientation.
+	 */
+	public static void clearCache() {
+		synchronized (sCache) {
+			sCache.clear();
+		}
+	}
+
+	/**
+	 * Reads the orientation from the start of a JPEG stream. The stream is
+	 * consumed up to the end of the EXIF segment; callers that decode from the
+	 * same stream must mark it first.
+	 *
+	 * @return one of the {@link ExifInterface} {@code ORIENTATION_*} values,
+	 *         {@link ExifInterface#ORIENTATION_NORMAL} when the stream is not
+	 *         a JPEG or has no orientation tag
+	 */
+	public static int read(InputStream in) throws IOException {
+		if (in.read() != MARKER_PREFIX || in.read() != MARKER_SOI) {
+			return ExifInterface.ORIENTATION_NORMAL;
+		}
+		while (true) {
+			int prefix = in.read();
+			if (prefix != MARKER_PREFIX) {
+				return ExifInterface.ORIENTATION_NORMAL;
+			}
+			int marker = in.read();
+			// fill bytes may precede a marker
+			while (marker == MARKER_PREFIX) {
+				marker = in.read();
+			}
+			if (marker < 0 || marker == MARKER_SOS || marker == MARKER_EOI) {
+				return ExifInterface.ORIENTATION_NORMAL;
+			}
+			int high = in.read();
+			int low = in.read();
+			if (high < 0 || low < 0) {
+				return ExifInterface.ORIENTATION_NORMAL;
+			}
+			int length = ((high << 8) | low) - 2;
+			if (length < 0) {
+				return ExifInterface.ORIENTATION_NORMAL;
+			}
+			if (marker == MARKER_APP1) {
+				byte[] segment = new byte[length];
+				if (readFully(in, segment) < length) {
+					return ExifInterface.ORIENTATION_NORMAL;
+				}
+				if (startsWith(segment, EXIF_HEADER)) {
+					return parse(segment, EXIF_HEADER.length, length
+							- EXIF_HEADER.length, 0).getOrientation();
+				}
+			} else if (skipFully(in, length) < length) {
+				return ExifInterface.ORIENTATION_NORMAL;
+			}
+		}
+	}
+
+	/**
+	 * Parses the orientation out of the first IFD of the TIFF structure of an
+	 * EXIF segment, and the thumbnail location out of the second.
+	 *
+	 * @param data
+	 *            buffer holding the segment
+	 * @param offset
+	 *            start of the TIFF header, right after "Exif\0\0"
+	 * @param length
+	 *            number of bytes of TIFF data
+	 * @param position
+	 *            position of the TIFF header in the file, added to the
+	 *            thumbnail offset
+	 */
+	static Header parse(byte[] data, int offset, int length, long position) {
+		if (length < 8) {
+			return Header.NONE;
+		}
+		boolean littleEndian;
+		if (data[offset] == 'I' && data[offset + 1] == 'I') {
+			littleEndian = true;
+		} else if (data[offset] == 'M' && data[offset + 1] == 'M') {
+			littleEndian = false;
+		} else {
+			return Header.NONE;
+		}
+		if (readShort(data, offset + 2, littleEndian) != 0x2A) {
+			return Header.NONE;
+		}
+		long ifdOffset = readInt(data, offset + 4, littleEndian) & 0xFFFFFFFFL;
+		if (ifdOffset < 8 || ifdOffset + 2 > length) {
+			return Header.NONE;
+		}
+		int ifd = offset + (int) ifdOffset;
+		int count = readShort(data, ifd, littleEndian);
+		int orientation = ExifInterface.ORIENTATION_NORMAL;
+		for (int i = 0; i < count; i++) {
+			int entry = ifd + 2 + i * 12;
+			if (entry + 12 > offset + length) {
+				break;
+			}
+			if (readShort(data, entry, littleEndian) == TAG_ORIENTATION) {
+				if (readShort(data, entry + 2, littleEndian) == TYPE_SHORT) {
+					int value = readShort(data, entry + 8, littleEndian);
+					if (value >= ExifInterface.ORIENTATION_NORMAL
+							&& value <= ExifInterface.ORIENTATION_ROTATE_270) {
+						orientation = value;
+					}
+				}
+				break;
+			}
+		}
+
+		// the offset of IFD1, which describes the thumbnail, follows IFD0
+		int next = ifd + 2 + count * 12;
+		if (next + 4 > offset + length) {
+			return new Header(orientation, 0, 0);
+		}
+		ifdOffset = readInt(data, next, littleEndian) & 0xFFFFFFFFL;
+		if (ifdOffset < 8 || ifdOffset + 2 > length) {
+			return new Header(orientation, 0, 0);
+		}
+		ifd = offset + (int) ifdOffset;
+		count = readShort(data, ifd, littleEndian);
+		long thumbnailOffset = 0;
+		long thumbnailLength = 0;
+		for (int i = 0; i < count; i++) {
+			int entry = ifd + 2 + i * 12;
+			if (entry + 12 > offset + length) {
+				break;
+			}
+			int tag = readShort(data, entry, littleEndian);
+			if (readShort(data, entry + 2, littleEndian) != TYPE_LONG) {
+				continue;
+			}
+			long value = readInt(data, entry + 8, littleEndian) & 0xFFFFFFFFL;
+			if (tag == TAG_THUMBNAIL_OFFSET) {
+				thumbnailOffset = value;
+			} else if (tag == TAG_THUMBNAIL_LENGTH) {
+				thumbnailLength = value;
+			}
+		}
+		// the thumbnail is stored inside the APP1 segment
+		if (thumbnailOffset < 8 || thumbnailLength <= 0
+				|| thumbnailOffset + thumbnailLength > length) {
+			return new Header(orientation, 0, 0);
+		}
+		return new Header(orientation, position + thumbnailOffset,
+				(int) thumbnailLength);
+	}
+
+	/**
+	 * @return clockwise rotation in degrees needed to display an image with
+	 *         the given orientation upright, applied after the horizontal
+	 *         flip for mirrored orientations, see {@link #isMirrored}
+	 */
+	public static int toDegrees(int orientation) {
+		switch (orientation) {
+		case ExifInterface.ORIENTATION_ROTATE_90:
+		case ExifInterface.ORIENTATION_TRANSVERSE:
+			return 90;
+		case ExifInterface.ORIENTATION_ROTATE_180:
+		case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+			return 180;
+		case ExifInterface.ORIENTATION_ROTATE_270:
+		case ExifInterface.ORIENTATION_TRANSPOSE:
+			return 270;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return whether an image with the given orientation must be flipped
+	 *         horizontally, before the rotation of {@link #toDegrees}, to be
+	 *         displayed upright
+	 */
+	public static boolean isMirrored(int orientation) {
+		return orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL
+				|| orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL
+				|| orientation == ExifInterface.ORIENTATION_TRANSPOSE
+				|| orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+	}
+
+	private static int readShort(byte[] data, int pos, boolean littleEndian) {
+		int b0 = data[pos] & 0xFF;
+		int b1 = data[pos + 1] & 0xFF;
+		return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	private static int readInt(byte[] data, int pos, boolean littleEndian) {
+		int b0 = data[pos] & 0xFF;
+		int b1 = data[pos + 1] & 0xFF;
+		int b2 = data[pos + 2] & 0xFF;
+		int b3 = data[pos + 3] & 0xFF;
+		return littleEndian ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0
+				: (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+	}
+
+	private static boolean startsWith(byte[] data, byte[] prefix) {
+		if (data.length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads exactly {@code count} bytes at the file position into the start
+	 * of the buffer.
+	 *
+	 * @return false when the file ends first
+	 */
+	private static boolean readAt(FileChannel channel, ByteBuffer buffer,
+			long position, int count) throws IOException {
+		buffer.clear();
+		buffer.limit(count);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int readFully(InputStream in, byte[] buffer)
+			throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int read = in.read(buffer, total, buffer.length - total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	private static long skipFully(InputStream in, long count)
+			throws IOException {
+		long total = 0;
+		while (total < count) {
+			long skipped = in.skip(count - total);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					break;
+				}
+				skipped = 1;
+			}
+			total += skipped;
+		}
+		return total;
+	}
+}
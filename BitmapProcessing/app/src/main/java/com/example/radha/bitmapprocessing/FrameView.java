@@ -1,23 +1,51 @@
 package com.example.radha.bitmapprocessing;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.Display;
 import android.view.View;
 import android.view.WindowManager;
 
+import java.util.concurrent.Callable;
+
 /**
  * Created by radha on 28/8/15.
  */
 public class FrameView extends View {
 
+    /**
+     * Keep the decoded bitmap and scale it while drawing. Only one copy of
+     * the pixels is held and a size change only updates the transform.
+     */
+    public static final int FIT_MODE_DRAW = 0;
+    /**
+     * Bake a screen sized bitmap with {@link BitmapUtil#fitToViewByScale}
+     * and draw it unscaled.
+     */
+    public static final int FIT_MODE_BAKED = 1;
+
     private Bitmap mBitmap;
     private int mScreenHeight;
     private int mScreenWidth;
 
+    private int mFitMode = FIT_MODE_DRAW;
+    private int mImageResId;
+    private String mImagePath;
+    private boolean mBitmapBaked;
+    private final Matrix mFitMatrix = new Matrix();
+    private final Paint mFitPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private TiledImage mTiledImage;
+    private final Matrix mTileMatrix = new Matrix();
+    private float mZoom = 1f;
+
     public FrameView(Context context) {
        super(context);
         init(context);
@@ -35,13 +63,163 @@ public class FrameView extends View {
         Display display = wm.getDefaultDisplay();
         mScreenHeight = display.getHeight();
         mScreenWidth = display.getWidth();
-        Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), R.drawable.image1);
-        mBitmap = BitmapUtil.fitToViewByScale(bitmap,mScreenWidth,mScreenHeight);
+        mImageResId = R.drawable.image1;
+        loadImage(context.getResources(), mImageResId);
+    }
+
+    /**
+     * Selects how the bitmap is fit into the view and reloads it. Images
+     * loaded with {@link #setImagePath} are always fit while drawing.
+     *
+     * @param fitMode {@link #FIT_MODE_DRAW} or {@link #FIT_MODE_BAKED}
+     */
+    public void setFitMode(int fitMode) {
+        if (mFitMode == fitMode) {
+            return;
+        }
+        mFitMode = fitMode;
+        if (mImagePath == null) {
+            loadImage(getResources(), mImageResId);
+        }
+    }
+
+    /**
+     * Shows an image file in two stages: a quick low resolution preview
+     * first, then the screen sized decode. Both are fit into the view by
+     * the same rule, so swapping in the full image only sharpens it. The
+     * current bitmap stays on screen until the preview replaces it, and the
+     * preview stays if the full decode fails.
+     */
+    public void setImagePath(String path) {
+        mImagePath = path;
+        DecodeScheduler.getInstance().decodeFileProgressive(this,
+                DecodeScheduler.PRIORITY_VISIBLE, path, mScreenWidth, mScreenHeight,
+                new DecodeScheduler.Callback() {
+                    @Override
+                    public void onDecoded(Bitmap preview) {
+                        showBitmap(preview, false);
+                    }
+                }, new DecodeScheduler.Callback() {
+                    @Override
+                    public void onDecoded(Bitmap bitmap) {
+                        if (bitmap != null) {
+                            showBitmap(bitmap, false);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Decodes the image on the decode scheduler, and in baked mode fits it
+     * there as well. The view draws nothing until the result arrives on the
+     * main thread.
+     */
+    private void loadImage(final Resources resources, final int id) {
+        final boolean baked = mFitMode == FIT_MODE_BAKED;
+        final int width = mScreenWidth;
+        final int height = mScreenHeight;
+        DecodeScheduler.getInstance().submit(this, DecodeScheduler.PRIORITY_VISIBLE,
+                new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws Exception {
+                        Bitmap bitmap = BitmapFactory.decodeResource(resources, id);
+                        if (bitmap == null || !baked) {
+                            return bitmap;
+                        }
+                        return BitmapUtil.fitToViewByScale(bitmap, width, height);
+                    }
+                }, new DecodeScheduler.Callback() {
+                    @Override
+                    public void onDecoded(Bitmap bitmap) {
+                        showBitmap(bitmap, baked);
+                    }
+                });
+    }
+
+    private void showBitmap(Bitmap bitmap, boolean baked) {
+        mBitmap = bitmap;
+        mBitmapBaked = baked;
+        updateFitMatrix();
+        invalidate();
+    }
+
+    private void updateFitMatrix() {
+        if (mBitmap == null || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        BitmapUtil.setFitToViewByScale(mFitMatrix, mBitmap.getWidth(), mBitmap.getHeight(),
+                getWidth(), getHeight());
+    }
+
+    /**
+     * Renders a very large image from tiles instead of a single bitmap. The
+     * image is fit into the view and can be magnified with {@link #setZoom}.
+     * A previously set tiled image is recycled.
+     *
+     * @param image tiled image, or null to go back to the plain bitmap
+     */
+    public void setTiledImage(TiledImage image) {
+        if (mTiledImage != null && mTiledImage != image) {
+            mTiledImage.recycle();
+        }
+        mTiledImage = image;
+        if (image != null) {
+            image.setListener(new TiledImage.Listener() {
+                @Override
+                public void onTileLoaded() {
+                    invalidate();
+                }
+            });
+        }
+        updateTileMatrix();
+        invalidate();
+    }
+
+    /**
+     * Magnifies the tiled image around the center of the view.
+     *
+     * @param zoom 1 to fit the image into the view
+     */
+    public void setZoom(float zoom) {
+        mZoom = zoom;
+        updateTileMatrix();
+        invalidate();
+    }
+
+    private void updateTileMatrix() {
+        if (mTiledImage == null || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        RectF imageRect = new RectF(0, 0, mTiledImage.getWidth(), mTiledImage.getHeight());
+        RectF viewRect = new RectF(0, 0, getWidth(), getHeight());
+        mTileMatrix.setRectToRect(imageRect, viewRect, Matrix.ScaleToFit.CENTER);
+        mTileMatrix.postScale(mZoom, mZoom, getWidth() / 2f, getHeight() / 2f);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateFitMatrix();
+        updateTileMatrix();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        DecodeScheduler.getInstance().cancel(this);
+        super.onDetachedFromWindow();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        canvas.drawBitmap(mBitmap,0,0,null);
+        if (mTiledImage != null) {
+            mTiledImage.draw(canvas, mTileMatrix, getWidth(), getHeight());
+        } else if (mBitmap != null) {
+            if (!mBitmapBaked) {
+                canvas.drawBitmap(mBitmap, mFitMatrix, mFitPaint);
+            } else {
+                canvas.drawBitmap(mBitmap,0,0,null);
+            }
+        }
     }
 }
@@ -3,28 +3,59 @@ package com.example.radha.bitmapprocessing;
 import android.os.Environment;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 
 public final class IOUtilities {
 	private static final String TAG = "IOUtilities";
 	
 	public static final int IO_BUFFER_SIZE = 8 * 1024;
+
+	/** Size of the pooled buffers used for bulk copies. */
+	public static final int POOLED_BUFFER_SIZE = 64 * 1024;
+
+	private static final int MAX_POOLED_BUFFERS = 8;
+
+	/** Bytes moved per {@link FileChannel#transferTo} call between reports. */
+	private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	private static final ArrayBlockingQueue<byte[]> sBufferPool = new ArrayBlockingQueue<byte[]>(
+			MAX_POOLED_BUFFERS);
+
+	/**
+	 * Receives the running byte count of a copy.
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param bytesCopied
+		 *            total number of bytes copied so far
+		 */
+		void onProgress(long bytesCopied);
+	}
 	
 	public static File getExternalFile(String file) {
 		return new File(Environment.getExternalStorageDirectory(), file);
 	}
 	
 	 /**
-     * Copy the content of the input stream into the output stream, using a temporary
-     * byte array buffer whose size is defined by {@link #IO_BUFFER_SIZE}.
+     * Copy the content of the input stream into the output stream, see
+     * {@link #copy(InputStream, OutputStream, ProgressListener)}.
      *
      * @param in The input stream to copy from.
      * @param out The output stream to copy to.
@@ -33,10 +64,90 @@ public final class IOUtilities {
      */
 	
 	public static void copy(InputStream in, OutputStream out) throws IOException {
-		byte[] b = new byte[IO_BUFFER_SIZE];
-		int read;
-		while ((read = in.read()) != -1) {
-			out.write(b, 0, read);
+		copy(in, out, null);
+	}
+
+	/**
+	 * Copy the content of the input stream into the output stream. When both
+	 * are file streams the bytes are moved by the kernel with
+	 * {@link FileChannel#transferTo}; otherwise they go through a pooled
+	 * buffer of {@link #POOLED_BUFFER_SIZE} bytes. Neither stream is closed.
+	 *
+	 * @param in The input stream to copy from.
+	 * @param out The output stream to copy to.
+	 * @param listener Notified after every chunk, may be null.
+	 * @return number of bytes copied
+	 *
+	 * @throws java.io.IOException If any error occurs during the copy.
+	 */
+	public static long copy(InputStream in, OutputStream out,
+			ProgressListener listener) throws IOException {
+		if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+			return copy(((FileInputStream) in).getChannel(),
+					((FileOutputStream) out).getChannel(), listener);
+		}
+		byte[] buffer = acquireBuffer();
+		try {
+			long total = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				total += read;
+				if (listener != null) {
+					listener.onProgress(total);
+				}
+			}
+			return total;
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Copy the rest of the source channel, from its position, into the target
+	 * channel at its position, without copying through the Java heap. Both
+	 * positions are advanced past the copied bytes.
+	 *
+	 * @return number of bytes copied
+	 */
+	public static long copy(FileChannel in, FileChannel out,
+			ProgressListener listener) throws IOException {
+		long position = in.position();
+		long size = in.size();
+		long total = 0;
+		while (position < size) {
+			long count = in.transferTo(position,
+					Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+			if (count <= 0) {
+				break;
+			}
+			position += count;
+			total += count;
+			if (listener != null) {
+				listener.onProgress(total);
+			}
+		}
+		in.position(position);
+		return total;
+	}
+
+	/**
+	 * Takes a buffer of {@link #POOLED_BUFFER_SIZE} bytes from the pool,
+	 * allocating one when the pool is empty. Hand it back with
+	 * {@link #releaseBuffer(byte[])}.
+	 */
+	static byte[] acquireBuffer() {
+		byte[] buffer = sBufferPool.poll();
+		return buffer != null ? buffer : new byte[POOLED_BUFFER_SIZE];
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquireBuffer()} to the pool.
+	 * Buffers beyond the pool capacity are left to the garbage collector.
+	 */
+	static void releaseBuffer(byte[] buffer) {
+		if (buffer != null && buffer.length == POOLED_BUFFER_SIZE) {
+			sBufferPool.offer(buffer);
 		}
 	}
 	
@@ -55,49 +166,401 @@ public final class IOUtilities {
 		}
 	}
 	
+	/**
+	 * Decodes the rest of the stream into a string and closes the stream.
+	 * The bytes are decoded in chunks by a per-thread reusable
+	 * {@link CharsetDecoder} into a builder presized from the file length
+	 * when known. Line terminators are kept as they are in the input.
+	 * Malformed input is replaced; a read error is logged and the text read
+	 * so far is returned.
+	 *
+	 * @param cs charset of the text, or null for the platform default
+	 */
 	public static String streamToString(InputStream is, Charset cs) {
-		BufferedReader br;
-		if(cs == null) {
-			br = new BufferedReader(new InputStreamReader(is));
-		} else {
-			br = new BufferedReader(new InputStreamReader(is, cs));
+		if (cs == null) {
+			cs = Charset.defaultCharset();
 		}
+		long length = remaining(is);
+		final StringBuilder sb = new StringBuilder(length > 0
+				&& length < Integer.MAX_VALUE ? (int) length : 16);
+		try {
+			decode(is, cs, new TextCallback() {
+				@Override
+				public void onText(CharBuffer text) {
+					sb.append(text);
+				}
+			});
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read text", e);
+		} finally {
+			closeStream(is);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Receives decoded text in chunks.
+	 */
+	public interface TextCallback {
+		/**
+		 * @param text next chunk of text, only valid during the call
+		 */
+		void onText(CharBuffer text) throws IOException;
+	}
 
-		StringBuffer sb = new StringBuffer();
+	/**
+	 * Receives decoded text one line at a time.
+	 */
+	public interface LineCallback {
+		/**
+		 * @param line line without its terminator, only valid during the call
+		 */
+		void onLine(CharSequence line) throws IOException;
+	}
+
+	/**
+	 * Decodes the rest of the stream chunk by chunk without materializing
+	 * the whole text, so large sidecar files can be processed in constant
+	 * memory. The stream is not closed.
+	 *
+	 * @return number of chars decoded
+	 */
+	public static long decode(InputStream is, Charset cs, TextCallback callback)
+			throws IOException {
+		TextDecoder textDecoder = textDecoder(cs);
+		CharsetDecoder decoder = textDecoder.decoder;
+		CharBuffer chars = textDecoder.chars;
+		decoder.reset();
+		chars.clear();
+		byte[] array = acquireBuffer();
 		try {
-			String line = null;
-			while ((line = br.readLine()) != null) {
-				sb.append(line + "\n");
+			ByteBuffer bytes = ByteBuffer.wrap(array);
+			bytes.flip();
+			long total = 0;
+			boolean endOfInput = false;
+			while (!endOfInput) {
+				bytes.compact();
+				int read = is.read(array, bytes.position(), bytes.remaining());
+				if (read == -1) {
+					endOfInput = true;
+				} else {
+					bytes.position(bytes.position() + read);
+				}
+				bytes.flip();
+				CoderResult result;
+				do {
+					result = decoder.decode(bytes, chars, endOfInput);
+					total += drain(chars, callback);
+				} while (result.isOverflow());
+				if (result.isError()) {
+					result.throwException();
+				}
 			}
-
-		} catch (Exception ex) {
-			ex.getMessage();
+			CoderResult result;
+			do {
+				result = decoder.flush(chars);
+				total += drain(chars, callback);
+			} while (result.isOverflow());
+			return total;
 		} finally {
-			try {
-				is.close();
-			} catch (Exception ex) {
+			releaseBuffer(array);
+		}
+	}
+
+	/**
+	 * Decodes the rest of the stream and hands it over line by line. Lines
+	 * end at '\n', a preceding '\r' is dropped. The stream is not closed.
+	 *
+	 * @return number of lines
+	 */
+	public static long forEachLine(InputStream is, Charset cs,
+			final LineCallback callback) throws IOException {
+		final StringBuilder line = new StringBuilder(80);
+		final long[] count = new long[1];
+		decode(is, cs, new TextCallback() {
+			@Override
+			public void onText(CharBuffer text) throws IOException {
+				int end = text.limit();
+				for (int i = text.position(); i < end; i++) {
+					char c = text.get(i);
+					if (c == '\n') {
+						deliverLine(line, callback);
+						count[0]++;
+					} else {
+						line.append(c);
+					}
+				}
 			}
+		});
+		if (line.length() > 0) {
+			deliverLine(line, callback);
+			count[0]++;
 		}
-		return sb.toString();
+		return count[0];
+	}
+
+	private static void deliverLine(StringBuilder line, LineCallback callback)
+			throws IOException {
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r') {
+			line.setLength(length - 1);
+		}
+		callback.onLine(line);
+		line.setLength(0);
+	}
+
+	private static int drain(CharBuffer chars, TextCallback callback)
+			throws IOException {
+		chars.flip();
+		int count = chars.remaining();
+		if (count > 0) {
+			callback.onText(chars);
+		}
+		chars.clear();
+		return count;
+	}
+
+	/** Chars decoded per chunk. */
+	private static final int CHAR_BUFFER_SIZE = 16 * 1024;
+
+	private static final ThreadLocal<TextDecoder> sTextDecoder = new ThreadLocal<TextDecoder>();
+
+	/**
+	 * Decoder and output buffer reused by every decode on a thread.
+	 */
+	private static final class TextDecoder {
+		CharsetDecoder decoder;
+		final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+	}
+
+	private static TextDecoder textDecoder(Charset cs) {
+		if (cs == null) {
+			cs = Charset.defaultCharset();
+		}
+		TextDecoder textDecoder = sTextDecoder.get();
+		if (textDecoder == null) {
+			textDecoder = new TextDecoder();
+			sTextDecoder.set(textDecoder);
+		}
+		if (textDecoder.decoder == null
+				|| !textDecoder.decoder.charset().equals(cs)) {
+			textDecoder.decoder = cs.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		return textDecoder;
 	}
 
 	public static String streamToString(InputStream is) {
 		return streamToString(is, null);
 	}
 
+	/**
+	 * Reads the rest of the stream into an array of exactly the right size.
+	 * For file streams the array is presized from the file length; other
+	 * streams are accumulated in pooled chunks and copied once at the end.
+	 *
+	 * @return content of the stream, or null if reading fails
+	 */
 	public static byte[] streamToByteArray(InputStream is){
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		int nRead;
-		byte[] data = new byte[16384];
+		return streamToByteArray(is, remaining(is));
+	}
+
+	/**
+	 * Same as {@link #streamToByteArray(InputStream)} for a stream whose
+	 * length is known up front, e.g. from a file descriptor. A wrong length
+	 * only costs an extra copy.
+	 *
+	 * @param expectedLength number of bytes expected, or -1 if unknown
+	 * @return content of the stream, or null if reading fails
+	 */
+	public static byte[] streamToByteArray(InputStream is, long expectedLength) {
+		Chunks chunks = new Chunks();
 		try {
-			while ((nRead = is.read(data, 0, data.length)) != -1) {
-			  buffer.write(data, 0, nRead);
-			}
-			buffer.flush();
-			return buffer.toByteArray();
+			readAll(is, expectedLength, chunks);
+			return chunks.toArray();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
+		} finally {
+			chunks.release();
+		}
+	}
+
+	/**
+	 * Reads the rest of the stream into a read-only buffer that can be handed
+	 * to a decoder without another copy. File streams are memory-mapped, so
+	 * their bytes are never copied onto the Java heap; other streams are
+	 * accumulated in pooled chunks and copied once into a heap or direct
+	 * buffer.
+	 *
+	 * @param direct whether a stream that is not a file is copied into a
+	 *            direct buffer rather than a heap one
+	 * @return read-only buffer positioned at 0 holding the content
+	 * @throws IOException if reading or mapping fails
+	 */
+	public static ByteBuffer streamToByteBuffer(InputStream is, boolean direct)
+			throws IOException {
+		if (is instanceof FileInputStream) {
+			FileChannel channel = ((FileInputStream) is).getChannel();
+			long position = channel.position();
+			long size = channel.size() - position;
+			ByteBuffer mapped = channel.map(MapMode.READ_ONLY, position, size);
+			channel.position(position + size);
+			return mapped;
+		}
+		Chunks chunks = new Chunks();
+		try {
+			readAll(is, -1, chunks);
+			ByteBuffer buffer = direct ? chunks.toDirectBuffer() : ByteBuffer
+					.wrap(chunks.toArray());
+			return buffer.asReadOnlyBuffer();
+		} finally {
+			chunks.release();
+		}
+	}
+
+	/**
+	 * Maps a whole file read-only.
+	 */
+	public static ByteBuffer mapFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return streamToByteBuffer(in, false);
+		} finally {
+			closeStream(in);
+		}
+	}
+
+	/**
+	 * @return bytes left in a file stream, or -1 for other streams
+	 */
+	private static long remaining(InputStream is) {
+		if (is instanceof FileInputStream) {
+			try {
+				FileChannel channel = ((FileInputStream) is).getChannel();
+				return channel.size() - channel.position();
+			} catch (IOException e) {
+				Log.w(TAG, "Could not get file length", e);
+			}
+		}
+		return -1;
+	}
+
+	static void readAll(InputStream is, long expectedLength,
+			Chunks chunks) throws IOException {
+		int first = -1;
+		if (expectedLength >= 0 && expectedLength < Integer.MAX_VALUE) {
+			byte[] data = new byte[(int) expectedLength];
+			int read = readFully(is, data, 0, data.length);
+			chunks.add(data, read, false);
+			if (read < data.length) {
+				return;
+			}
+			// a stream of exactly the expected length ends here, which keeps
+			// the array the only chunk
+			first = is.read();
+			if (first == -1) {
+				return;
+			}
+		}
+		while (true) {
+			byte[] buffer = acquireBuffer();
+			int offset = 0;
+			if (first != -1) {
+				buffer[offset++] = (byte) first;
+				first = -1;
+			}
+			int read = offset + readFully(is, buffer, offset, buffer.length
+					- offset);
+			if (read == 0) {
+				releaseBuffer(buffer);
+				return;
+			}
+			chunks.add(buffer, read, true);
+			if (read < buffer.length) {
+				return;
+			}
+		}
+	}
+
+	private static int readFully(InputStream is, byte[] buffer, int offset,
+			int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int read = is.read(buffer, offset + total, length - total);
+			if (read == -1) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Content of a stream as a list of filled arrays, some of them borrowed
+	 * from the buffer pool.
+	 */
+	static final class Chunks {
+		private final List<byte[]> mArrays = new ArrayList<byte[]>();
+		private final List<Integer> mLengths = new ArrayList<Integer>();
+		private final List<Boolean> mPooled = new ArrayList<Boolean>();
+		private long mTotal;
+
+		/**
+		 * @return number of arrays holding the content
+		 */
+		int count() {
+			return mArrays.size();
+		}
+
+		void add(byte[] array, int length, boolean pooled) {
+			mArrays.add(array);
+			mLengths.add(length);
+			mPooled.add(pooled);
+			mTotal += length;
+		}
+
+		byte[] toArray() throws IOException {
+			if (mTotal > Integer.MAX_VALUE) {
+				throw new IOException("Stream too large: " + mTotal);
+			}
+			// a single exactly filled array needs no copy
+			if (mArrays.size() == 1 && !mPooled.get(0)
+					&& mLengths.get(0) == mArrays.get(0).length) {
+				return mArrays.get(0);
+			}
+			byte[] result = new byte[(int) mTotal];
+			int offset = 0;
+			for (int i = 0; i < mArrays.size(); i++) {
+				int length = mLengths.get(i);
+				System.arraycopy(mArrays.get(i), 0, result, offset, length);
+				offset += length;
+			}
+			return result;
+		}
+
+		ByteBuffer toDirectBuffer() throws IOException {
+			if (mTotal > Integer.MAX_VALUE) {
+				throw new IOException("Stream too large: " + mTotal);
+			}
+			ByteBuffer result = ByteBuffer.allocateDirect((int) mTotal);
+			for (int i = 0; i < mArrays.size(); i++) {
+				result.put(mArrays.get(i), 0, mLengths.get(i));
+			}
+			result.flip();
+			return result;
+		}
+
+		void release() {
+			for (int i = 0; i < mArrays.size(); i++) {
+				if (mPooled.get(i)) {
+					releaseBuffer(mArrays.get(i));
+				}
+			}
+			mArrays.clear();
+			mLengths.clear();
+			mPooled.clear();
 		}
 	}
 }
@@ -0,0 +1,142 @@
+package com.example.radha.bitmapprocessing;
+
+/**
+ * Image geometry used by {@link BitmapUtil}. Kept free of android classes
+ * so it runs, and can be benchmarked, on a plain JVM.
+ */
+public final class ImageMath {
+	/** EXIF orientation values for which width and height are swapped. */
+	private static final int ORIENTATION_ROTATE_90 = 6;
+	private static final int ORIENTATION_ROTATE_270 = 8;
+	private static final int ORIENTATION_TRANSPOSE = 5;
+
+	private ImageMath() {
+	}
+
+	/**
+	 * Sample size fitting an image into the target size, see
+	 * {@link BitmapUtil#calculateInSampleSize}.
+	 *
+	 * @param outWidth
+	 *            width of the encoded image
+	 * @param outHeight
+	 *            height of the encoded image
+	 * @param width
+	 *            target width
+	 * @param height
+	 *            target height
+	 * @param orientation
+	 *            EXIF orientation of the image
+	 * @return 1, 2, 4, 8 or 16
+	 */
+	public static int calculateInSampleSize(int outWidth, int outHeight,
+			int width, int height, int orientation) {
+		int sampleSize = 1;
+		if ((outHeight > width || outWidth > height)
+				&& (orientation == ORIENTATION_ROTATE_270 || orientation == ORIENTATION_ROTATE_90)) {
+			final int round = Math.round((float) outHeight / (float) width);
+			final int round2 = Math.round((float) outWidth / (float) height);
+			if (round < round2) {
+				sampleSize = round;
+			} else {
+				sampleSize = round2;
+			}
+		} else if (outHeight > height || outWidth > width) {
+			final int round3 = Math.round((float) outHeight / (float) height);
+			final int round4 = Math.round((float) outWidth / (float) width);
+			if (round3 < round4) {
+				sampleSize = round3;
+			} else {
+				sampleSize = round4;
+			}
+		}
+		if (sampleSize > 16) {
+			sampleSize = 16;
+		} else {
+			if (sampleSize > 8) {
+				return 8;
+			}
+			if (sampleSize > 4) {
+				return 4;
+			}
+			if (sampleSize > 2) {
+				return 2;
+			}
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Power of two sample size that halves the image while both sides stay
+	 * at or above the smaller side of the target.
+	 */
+	public static int powerOfTwoSampleSize(int outWidth, int outHeight,
+			int width, int height) {
+		int requiredSize = (width < height) ? width : height;
+		int widthTmp = outWidth, heightTmp = outHeight;
+		int scale = 1;
+		while (requiredSize > 0 && widthTmp / 2 >= requiredSize
+				&& heightTmp / 2 >= requiredSize) {
+			widthTmp /= 2;
+			heightTmp /= 2;
+			scale *= 2;
+		}
+		return scale;
+	}
+
+	/**
+	 * Smallest power of two sample size at which the decoded pixels fit into
+	 * a byte budget. Decoded sides are rounded up, so the estimate never
+	 * falls short of what the decoder allocates.
+	 *
+	 * @param bytesPerPixel
+	 *            4 for ARGB_8888, 2 for RGB_565
+	 * @return 1 or more; at most the size that shrinks the image to 1x1
+	 */
+	public static int budgetSampleSize(int outWidth, int outHeight,
+			int bytesPerPixel, long maxBytes) {
+		int sampleSize = 1;
+		while (true) {
+			long width = (outWidth + sampleSize - 1) / sampleSize;
+			long height = (outHeight + sampleSize - 1) / sampleSize;
+			if (width * height * bytesPerPixel <= maxBytes
+					|| (width <= 1 && height <= 1)) {
+				return sampleSize;
+			}
+			sampleSize *= 2;
+		}
+	}
+
+	/**
+	 * @return whether an image with the given EXIF orientation is displayed
+	 *         with width and height swapped, i.e. orientations 5 to 8
+	 */
+	public static boolean swapsSides(int orientation) {
+		return orientation >= ORIENTATION_TRANSPOSE
+				&& orientation <= ORIENTATION_ROTATE_270;
+	}
+
+	/**
+	 * Largest power of two sample size that still leaves at least the
+	 * target size, so the rest can be scaled down exactly without ever
+	 * scaling up.
+	 *
+	 * @param outWidth
+	 *            width of the encoded image
+	 * @param outHeight
+	 *            height of the encoded image
+	 * @param targetWidth
+	 *            final width in the same orientation as the encoded image
+	 * @param targetHeight
+	 *            final height in the same orientation as the encoded image
+	 */
+	public static int exactSampleSize(int outWidth, int outHeight,
+			int targetWidth, int targetHeight) {
+		int sampleSize = 1;
+		while (outWidth / (sampleSize * 2) >= targetWidth
+				&& outHeight / (sampleSize * 2) >= targetHeight) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+}
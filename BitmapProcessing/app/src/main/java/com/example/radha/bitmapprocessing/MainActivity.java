@@ -10,6 +10,7 @@ public class MainActivity extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        MemoryTrimmer.register(this);
         mView = new FrameView(this);
         setContentView(mView);
     }
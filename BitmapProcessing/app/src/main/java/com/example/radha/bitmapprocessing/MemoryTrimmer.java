@@ -0,0 +1,119 @@
+package com.example.radha.bitmapprocessing;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Shrinks the bitmap caches and the bitmap pool when the system reports
+ * memory pressure, so the process hands memory back before a decode runs
+ * out of it or the process is killed.
+ * <p>
+ * The pool only holds bitmaps nobody uses, so it goes first. While the UI
+ * is visible the memory cache is trimmed by a share that grows with the
+ * pressure; once the process is likely to be killed every cache is
+ * emptied. Cached tiles of every live {@link TiledImage} are dropped when
+ * memory runs critical or the UI is hidden.
+ */
+public class MemoryTrimmer implements ComponentCallbacks2 {
+	private static MemoryTrimmer sInstance;
+
+	private static final Set<TiledImage> sTiledImages = Collections
+			.synchronizedSet(Collections
+					.newSetFromMap(new WeakHashMap<TiledImage, Boolean>()));
+
+	private MemoryTrimmer() {
+	}
+
+	/**
+	 * Starts trimming on the trim callbacks of the application. Safe to call
+	 * from every activity; only the first call registers.
+	 */
+	public static synchronized void register(Context context) {
+		if (sInstance == null) {
+			sInstance = new MemoryTrimmer();
+			context.getApplicationContext().registerComponentCallbacks(
+					sInstance);
+		}
+	}
+
+	/**
+	 * Lets the tiles of an image be trimmed. The image is only weakly held.
+	 */
+	static void track(TiledImage image) {
+		sTiledImages.add(image);
+	}
+
+	static void untrack(TiledImage image) {
+		sTiledImages.remove(image);
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		trim(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		trim(TRIM_MEMORY_COMPLETE);
+	}
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+	}
+
+	/**
+	 * Releases memory for a trim level. Also called by the decoders when an
+	 * allocation fails, with {@link #TRIM_MEMORY_RUNNING_CRITICAL}.
+	 *
+	 * @param level
+	 *            one of the {@code TRIM_MEMORY_*} levels of
+	 *            {@link ComponentCallbacks2}
+	 */
+	public static void trim(int level) {
+		BitmapPool pool = BitmapPool.getInstance();
+		BitmapMemoryCache cache = BitmapMemoryCache.getInstance();
+		if (level >= TRIM_MEMORY_MODERATE) {
+			// the process is among the next to be killed, keep nothing
+			pool.clear();
+			cache.clear();
+			trimTiles();
+			ExifOrientation.clearCache();
+			UriPathResolver resolver = UriPathResolver.peekInstance();
+			if (resolver != null) {
+				resolver.clear();
+			}
+		} else if (level >= TRIM_MEMORY_BACKGROUND
+				|| level == TRIM_MEMORY_RUNNING_CRITICAL) {
+			pool.clear();
+			cache.trimToSize(cache.size() / 4);
+			trimTiles();
+		} else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+			// nothing is on screen, so visible tiles need not stay either
+			pool.clear();
+			cache.trimToSize(cache.size() / 2);
+			trimTiles();
+		} else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+			pool.clear();
+			cache.trimToSize(cache.size() / 2);
+		} else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+			pool.trimToSize(pool.size() / 2);
+		}
+	}
+
+	private static void trimTiles() {
+		List<TiledImage> images;
+		synchronized (sTiledImages) {
+			images = new ArrayList<TiledImage>(sTiledImages);
+		}
+		for (TiledImage image : images) {
+			image.trimTiles();
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package com.example.radha.bitmapprocessing;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates thumbnails for many images at once, e.g. on import, on one
+ * thread per core.
+ * <p>
+ * Parallelism is bounded by memory rather than by threads: every image is
+ * first measured with a bounds pass, and its decode only starts once the
+ * estimated peak bytes of all running decodes, including the copy made to
+ * turn an image upright, stay within the in-flight budget. A single image
+ * larger than the budget still runs, alone. Thumbnails are handed to the
+ * listener as they complete.
+ */
+public class ThumbnailBatch {
+	private static final String TAG = "ThumbnailBatch";
+
+	private static final int KEEP_ALIVE_SECONDS = 30;
+
+	private static ExecutorService sExecutor;
+
+	/**
+	 * Receives the results of a batch on the decoding threads, so it must
+	 * be thread safe and should hand the thumbnails off quickly.
+	 */
+	public interface Listener {
+		/**
+		 * @param path
+		 *            image the thumbnail is for
+		 * @param thumbnail
+		 *            upright thumbnail, or null when the image could not be
+		 *            decoded
+		 */
+		void onThumbnail(String path, Bitmap thumbnail);
+
+		/**
+		 * Called once after the last thumbnail, also for a cancelled batch.
+		 */
+		void onBatchFinished(Stats stats);
+	}
+
+	/**
+	 * Receives the results of a batch made by {@link #forUris}, keyed by the
+	 * uris it was made from. Called on the decoding threads, like
+	 * {@link Listener}.
+	 */
+	public interface UriListener {
+		/**
+		 * @param uri
+		 *            image the thumbnail is for
+		 * @param thumbnail
+		 *            upright thumbnail, or null when the uri has no file path
+		 *            or the image could not be decoded
+		 */
+		void onThumbnail(Uri uri, Bitmap thumbnail);
+
+		/**
+		 * Called once after the last thumbnail, also for a cancelled batch.
+		 */
+		void onBatchFinished(Stats stats);
+	}
+
+	/** Paths of the images, null for uris that did not resolve. */
+	private final List<String> mPaths;
+	/** Uris the paths were resolved from, or null for a batch of paths. */
+	private final List<Uri> mUris;
+	private final int mWidth;
+	private final int mHeight;
+	private final long mMaxInFlightBytes;
+	private final Object mBudgetLock = new Object();
+	private long mInFlightBytes;
+	private long mPeakInFlightBytes;
+	private Listener mListener;
+	private UriListener mUriListener;
+	private volatile boolean mCancelled;
+	private long mStartNanos;
+	private final AtomicInteger mRemaining = new AtomicInteger();
+	private final AtomicInteger mDecoded = new AtomicInteger();
+	private final AtomicInteger mFailed = new AtomicInteger();
+	private final AtomicLong mDecodedBytes = new AtomicLong();
+	private final AtomicLong mFinishNanos = new AtomicLong();
+
+	/**
+	 * Creates a batch with an in-flight budget of a quarter of the heap.
+	 *
+	 * @param paths
+	 *            image files
+	 * @param width
+	 *            maximum thumbnail width
+	 * @param height
+	 *            maximum thumbnail height
+	 */
+	public ThumbnailBatch(List<String> paths, int width, int height) {
+		this(paths, width, height, Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	/**
+	 * @param maxInFlightBytes
+	 *            upper bound of the estimated pixel bytes of the decodes
+	 *            running at the same time
+	 */
+	public ThumbnailBatch(List<String> paths, int width, int height,
+			long maxInFlightBytes) {
+		this(paths, null, width, height, maxInFlightBytes);
+	}
+
+	private ThumbnailBatch(List<String> paths, List<Uri> uris, int width,
+			int height, long maxInFlightBytes) {
+		mPaths = new ArrayList<String>(paths);
+		mUris = uris;
+		mWidth = width;
+		mHeight = height;
+		mMaxInFlightBytes = maxInFlightBytes;
+	}
+
+	/**
+	 * Creates a batch for content or file uris, with an in-flight budget of
+	 * a quarter of the heap. The uris are resolved to paths up front with
+	 * one query per collection, see {@link UriPathResolver#resolveAll}; uris
+	 * without a path count as failed images. Start it with a
+	 * {@link UriListener} to match the thumbnails to the uris.
+	 */
+	public static ThumbnailBatch forUris(Context context, List<Uri> uris,
+			int width, int height) {
+		List<Uri> batchUris = new ArrayList<Uri>(uris);
+		Map<Uri, String> resolved = UriPathResolver.getInstance(context)
+				.resolveAll(batchUris);
+		List<String> paths = new ArrayList<String>(batchUris.size());
+		for (Uri uri : batchUris) {
+			paths.add(resolved.get(uri));
+		}
+		return new ThumbnailBatch(paths, batchUris, width, height, Runtime
+				.getRuntime().maxMemory() / 4);
+	}
+
+	/**
+	 * Queues every image of the batch. A batch can only be started once.
+	 */
+	public void start(Listener listener) {
+		checkNotStarted();
+		mListener = listener;
+		start();
+	}
+
+	/**
+	 * Queues every image of a batch made by {@link #forUris}. A batch can
+	 * only be started once.
+	 */
+	public void start(UriListener listener) {
+		if (mUris == null) {
+			throw new IllegalStateException("Batch was not made from uris");
+		}
+		checkNotStarted();
+		mUriListener = listener;
+		start();
+	}
+
+	private void checkNotStarted() {
+		if (mListener != null || mUriListener != null) {
+			throw new IllegalStateException("Batch already started");
+		}
+	}
+
+	private void start() {
+		mStartNanos = System.nanoTime();
+		mRemaining.set(mPaths.size());
+		if (mPaths.isEmpty()) {
+			finish();
+			return;
+		}
+		ExecutorService executor = executor();
+		for (int i = 0; i < mPaths.size(); i++) {
+			executor.execute(new ThumbnailTask(i));
+		}
+	}
+
+	/**
+	 * Skips the images that have not started yet. Running decodes complete
+	 * and are still delivered.
+	 */
+	public void cancel() {
+		mCancelled = true;
+		synchronized (mBudgetLock) {
+			mBudgetLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return progress of the batch so far
+	 */
+	public Stats getStats() {
+		long end = mFinishNanos.get();
+		if (end == 0) {
+			end = System.nanoTime();
+		}
+		long peak;
+		synchronized (mBudgetLock) {
+			peak = mPeakInFlightBytes;
+		}
+		return new Stats(mPaths.size(), mDecoded.get(), mFailed.get(),
+				mDecodedBytes.get(), peak,
+				TimeUnit.NANOSECONDS.toMillis(end - mStartNanos));
+	}
+
+	private static synchronized ExecutorService executor() {
+		if (sExecutor == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+					threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger mCount = new AtomicInteger(1);
+
+						@Override
+						public Thread newThread(final Runnable r) {
+							Thread thread = new Thread(new Runnable() {
+								@Override
+								public void run() {
+									Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+									r.run();
+								}
+							}, "thumbnail-" + mCount.getAndIncrement());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			sExecutor = executor;
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * Waits until the bytes fit into the budget next to the running decodes.
+	 *
+	 * @return false if the batch was cancelled while waiting
+	 */
+	private boolean acquire(long bytes) throws InterruptedException {
+		synchronized (mBudgetLock) {
+			while (!mCancelled && mInFlightBytes > 0
+					&& mInFlightBytes + bytes > mMaxInFlightBytes) {
+				mBudgetLock.wait();
+			}
+			if (mCancelled) {
+				return false;
+			}
+			mInFlightBytes += bytes;
+			mPeakInFlightBytes = Math.max(mPeakInFlightBytes, mInFlightBytes);
+			return true;
+		}
+	}
+
+	private void release(long bytes) {
+		synchronized (mBudgetLock) {
+			mInFlightBytes -= bytes;
+			mBudgetLock.notifyAll();
+		}
+	}
+
+	private void finish() {
+		mFinishNanos.set(System.nanoTime());
+		Stats stats = getStats();
+		if (mUriListener != null) {
+			mUriListener.onBatchFinished(stats);
+		} else {
+			mListener.onBatchFinished(stats);
+		}
+	}
+
+	private class ThumbnailTask implements Runnable {
+		private final int mIndex;
+		private final String mPath;
+
+		ThumbnailTask(int index) {
+			mIndex = index;
+			mPath = mPaths.get(index);
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (!mCancelled) {
+					decode();
+				}
+			} finally {
+				if (mRemaining.decrementAndGet() == 0) {
+					finish();
+				}
+			}
+		}
+
+		private void decode() {
+			Bitmap thumbnail = null;
+			try {
+				BitmapUtil.SizedDecode decode = mPath == null ? null
+						: BitmapUtil.prepareDecodeToSize(mPath, mWidth, mHeight);
+				if (decode != null) {
+					try {
+						long estimate = decode.getEstimatedBytes();
+						if (!acquire(estimate)) {
+							return;
+						}
+						try {
+							thumbnail = BitmapUtil.decodeToSize(decode);
+						} finally {
+							release(estimate);
+						}
+					} finally {
+						decode.close();
+					}
+				}
+			} catch (FileNotFoundException e) {
+				Log.w(TAG, "Missing image " + mPath);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (OutOfMemoryError e) {
+				Log.w(TAG, "Out of memory decoding " + mPath, e);
+			}
+			if (thumbnail != null) {
+				mDecoded.incrementAndGet();
+				mDecodedBytes.addAndGet(thumbnail.getByteCount());
+			} else {
+				mFailed.incrementAndGet();
+			}
+			if (mUriListener != null) {
+				mUriListener.onThumbnail(mUris.get(mIndex), thumbnail);
+			} else {
+				mListener.onThumbnail(mPath, thumbnail);
+			}
+		}
+	}
+
+	/**
+	 * Throughput of a batch.
+	 */
+	public static final class Stats {
+		private final int mTotal;
+		private final int mDecoded;
+		private final int mFailed;
+		private final long mDecodedBytes;
+		private final long mPeakInFlightBytes;
+		private final long mElapsedMillis;
+
+		Stats(int total, int decoded, int failed, long decodedBytes,
+				long peakInFlightBytes, long elapsedMillis) {
+			mTotal = total;
+			mDecoded = decoded;
+			mFailed = failed;
+			mDecodedBytes = decodedBytes;
+			mPeakInFlightBytes = peakInFlightBytes;
+			mElapsedMillis = elapsedMillis;
+		}
+
+		/** @return number of images in the batch */
+		public int getTotal() {
+			return mTotal;
+		}
+
+		/** @return number of thumbnails produced so far */
+		public int getDecoded() {
+			return mDecoded;
+		}
+
+		/** @return number of images that could not be decoded */
+		public int getFailed() {
+			return mFailed;
+		}
+
+		/** @return pixel bytes of the thumbnails produced */
+		public long getDecodedBytes() {
+			return mDecodedBytes;
+		}
+
+		/** @return highest estimated bytes decoding at the same time */
+		public long getPeakInFlightBytes() {
+			return mPeakInFlightBytes;
+		}
+
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+		}
+
+		/** @return thumbnails produced per second of wall time */
+		public float getThumbnailsPerSecond() {
+			return mElapsedMillis == 0 ? 0f : mDecoded * 1000f
+					/ mElapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+			return "ThumbnailBatch.Stats[" + mDecoded + "/" + mTotal
+					+ " decoded, " + mFailed + " failed, " + mElapsedMillis
+					+ "ms, " + getThumbnailsPerSecond() + "/s, peak "
+					+ mPeakInFlightBytes + " bytes in flight]";
+		}
+	}
+}
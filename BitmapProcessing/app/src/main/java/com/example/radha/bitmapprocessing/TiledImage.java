@@ -0,0 +1,343 @@
+package com.example.radha.bitmapprocessing;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.LongSparseArray;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Renders an image too large to decode in one piece from square tiles
+ * decoded with {@link BitmapRegionDecoder}.
+ * <p>
+ * Only the tiles intersecting the viewport are decoded, at the power of two
+ * sample size matching the current zoom, so the memory used is bounded by
+ * the screen size rather than the image size. Decoded tiles are kept in an
+ * LRU cache bounded by pixel bytes. Missing tiles are decoded on the
+ * {@link DecodeScheduler}; until they arrive a coarse preview of the whole
+ * image is drawn in their place.
+ */
+public class TiledImage {
+	/** Edge of a tile in output pixels. */
+	public static final int TILE_SIZE = 256;
+
+	/** Longest edge of the preview shown under missing tiles. */
+	private static final int PREVIEW_SIZE = 1024;
+
+	/**
+	 * Notified on the main thread when a tile has been decoded and the image
+	 * should be drawn again.
+	 */
+	public interface Listener {
+		void onTileLoaded();
+	}
+
+	private final BitmapRegionDecoder mDecoder;
+	private final int mWidth;
+	private final int mHeight;
+	/** Tiles by {@link #tileKey}. */
+	private final LruCache<Long, Bitmap> mTileCache;
+	private final LongSparseArray<DecodeScheduler.Request> mPending = new LongSparseArray<DecodeScheduler.Request>();
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Matrix mInverse = new Matrix();
+	private final float[] mValues = new float[9];
+	private final RectF mVisible = new RectF();
+	private final RectF mTileRect = new RectF();
+	private final Rect mPreviewSrc = new Rect();
+	private Listener mListener;
+	private Bitmap mPreview;
+	private boolean mRecycled;
+
+	/**
+	 * @param decoder
+	 *            region decoder of the image
+	 * @param maxCacheBytes
+	 *            upper bound of the pixel bytes of cached tiles; a few
+	 *            screens worth is enough
+	 */
+	public TiledImage(BitmapRegionDecoder decoder, int maxCacheBytes) {
+		mDecoder = decoder;
+		mWidth = decoder.getWidth();
+		mHeight = decoder.getHeight();
+		mTileCache = new LruCache<Long, Bitmap>(maxCacheBytes) {
+			@Override
+			protected int sizeOf(Long key, Bitmap value) {
+				return value.getByteCount();
+			}
+		};
+		MemoryTrimmer.track(this);
+		loadPreview();
+	}
+
+	/**
+	 * Opens a tiled image on a file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened or is not a JPEG or PNG
+	 */
+	public static TiledImage open(String path, int maxCacheBytes)
+			throws IOException {
+		return new TiledImage(BitmapRegionDecoder.newInstance(path, false),
+				maxCacheBytes);
+	}
+
+	/**
+	 * Opens a tiled image on a stream, e.g. a raw resource. The stream is
+	 * closed.
+	 */
+	public static TiledImage open(InputStream in, int maxCacheBytes)
+			throws IOException {
+		try {
+			return new TiledImage(BitmapRegionDecoder.newInstance(in, false),
+					maxCacheBytes);
+		} finally {
+			IOUtilities.closeStream(in);
+		}
+	}
+
+	/**
+	 * @return tile cache budget covering the given number of screens
+	 */
+	public static int cacheBytesForScreens(int screenWidth, int screenHeight,
+			int screens) {
+		// tiles overlapping the edges add up to one tile on every side
+		long width = screenWidth + 2 * TILE_SIZE;
+		long height = screenHeight + 2 * TILE_SIZE;
+		return (int) Math.min(Integer.MAX_VALUE, width * height * 4 * screens);
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Draws the part of the image visible in the view.
+	 *
+	 * @param canvas
+	 *            canvas of the view
+	 * @param imageToView
+	 *            transform from image pixels to view pixels
+	 * @param viewWidth
+	 *            width of the view
+	 * @param viewHeight
+	 *            height of the view
+	 */
+	public void draw(Canvas canvas, Matrix imageToView, int viewWidth,
+			int viewHeight) {
+		if (mRecycled || !imageToView.invert(mInverse)) {
+			return;
+		}
+		mVisible.set(0, 0, viewWidth, viewHeight);
+		mInverse.mapRect(mVisible);
+		if (!mVisible.intersect(0, 0, mWidth, mHeight)) {
+			return;
+		}
+		imageToView.getValues(mValues);
+		float scale = (float) Math.sqrt(mValues[Matrix.MSCALE_X]
+				* mValues[Matrix.MSCALE_X] + mValues[Matrix.MSKEW_Y]
+				* mValues[Matrix.MSKEW_Y]);
+		int sampleSize = sampleSizeForScale(scale);
+		int extent = TILE_SIZE * sampleSize;
+
+		int firstCol = (int) (mVisible.left / extent);
+		int lastCol = (int) ((mVisible.right - 1) / extent);
+		int firstRow = (int) (mVisible.top / extent);
+		int lastRow = (int) ((mVisible.bottom - 1) / extent);
+
+		canvas.save();
+		canvas.concat(imageToView);
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int col = firstCol; col <= lastCol; col++) {
+				int left = col * extent;
+				int top = row * extent;
+				mTileRect.set(left, top, Math.min(left + extent, mWidth),
+						Math.min(top + extent, mHeight));
+				long key = tileKey(sampleSize, col, row);
+				Bitmap tile = mTileCache.get(key);
+				if (tile != null) {
+					canvas.drawBitmap(tile, null, mTileRect, mPaint);
+				} else {
+					drawPreview(canvas, mTileRect);
+					requestTile(key, sampleSize, col, row);
+				}
+			}
+		}
+		canvas.restore();
+		cancelStale(sampleSize, firstCol, lastCol, firstRow, lastRow);
+	}
+
+	/**
+	 * Releases the decoder, the preview and every cached tile.
+	 */
+	public void recycle() {
+		mRecycled = true;
+		synchronized (mPending) {
+			for (int i = 0; i < mPending.size(); i++) {
+				mPending.valueAt(i).cancel();
+			}
+			mPending.clear();
+		}
+		mTileCache.evictAll();
+		if (mPreview != null) {
+			BitmapPool.getInstance().put(mPreview);
+			mPreview = null;
+		}
+		mDecoder.recycle();
+		MemoryTrimmer.untrack(this);
+	}
+
+	/**
+	 * Drops every cached tile, e.g. when memory runs low. Tiles are decoded
+	 * again as they become visible. Called by {@link MemoryTrimmer}.
+	 */
+	public void trimTiles() {
+		mTileCache.evictAll();
+	}
+
+	/**
+	 * @return largest power of two sample size that still gives at least one
+	 *         decoded pixel per view pixel
+	 */
+	static int sampleSizeForScale(float scale) {
+		int sampleSize = 1;
+		if (scale <= 0f) {
+			return sampleSize;
+		}
+		while (sampleSize * 2 * scale <= 1f) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Packs a tile into a key: the sample size in the top 16 bits, then 24
+	 * bits each of column and row.
+	 */
+	private static long tileKey(int sampleSize, int col, int row) {
+		return (long) sampleSize << 48 | (long) col << 24 | row;
+	}
+
+	private void drawPreview(Canvas canvas, RectF dst) {
+		Bitmap preview = mPreview;
+		if (preview == null) {
+			return;
+		}
+		float sx = preview.getWidth() / (float) mWidth;
+		float sy = preview.getHeight() / (float) mHeight;
+		mPreviewSrc.set((int) (dst.left * sx), (int) (dst.top * sy),
+				(int) Math.ceil(dst.right * sx),
+				(int) Math.ceil(dst.bottom * sy));
+		canvas.drawBitmap(preview, mPreviewSrc, dst, mPaint);
+	}
+
+	private void loadPreview() {
+		int sampleSize = 1;
+		while (Math.max(mWidth, mHeight) / sampleSize > PREVIEW_SIZE) {
+			sampleSize *= 2;
+		}
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		DecodeScheduler.getInstance().submit(this,
+				DecodeScheduler.PRIORITY_VISIBLE, new Callable<Bitmap>() {
+					@Override
+					public Bitmap call() throws Exception {
+						return mDecoder.decodeRegion(new Rect(0, 0, mWidth,
+								mHeight), options);
+					}
+				}, new DecodeScheduler.Callback() {
+					@Override
+					public void onDecoded(Bitmap bitmap) {
+						if (mRecycled) {
+							BitmapPool.getInstance().put(bitmap);
+							return;
+						}
+						mPreview = bitmap;
+						notifyListener();
+					}
+				});
+	}
+
+	private void requestTile(final long key, final int sampleSize,
+			int col, int row) {
+		synchronized (mPending) {
+			if (mPending.get(key) != null) {
+				return;
+			}
+		}
+		int extent = TILE_SIZE * sampleSize;
+		final Rect region = new Rect(col * extent, row * extent, Math.min(
+				(col + 1) * extent, mWidth), Math.min((row + 1) * extent,
+				mHeight));
+		DecodeScheduler.Request request = DecodeScheduler.getInstance()
+				.submit(null, DecodeScheduler.PRIORITY_VISIBLE,
+						new Callable<Bitmap>() {
+							@Override
+							public Bitmap call() throws Exception {
+								if (mRecycled) {
+									return null;
+								}
+								BitmapFactory.Options options = new BitmapFactory.Options();
+								options.inSampleSize = sampleSize;
+								return mDecoder.decodeRegion(region, options);
+							}
+						}, new DecodeScheduler.Callback() {
+							@Override
+							public void onDecoded(Bitmap bitmap) {
+								synchronized (mPending) {
+									mPending.remove(key);
+								}
+								if (bitmap == null || mRecycled) {
+									return;
+								}
+								mTileCache.put(key, bitmap);
+								notifyListener();
+							}
+						});
+		synchronized (mPending) {
+			mPending.put(key, request);
+		}
+	}
+
+	/**
+	 * Cancels queued tile decodes outside the visible tiles, e.g. after a
+	 * fast scroll or zoom change.
+	 */
+	private void cancelStale(int sampleSize, int firstCol, int lastCol,
+			int firstRow, int lastRow) {
+		synchronized (mPending) {
+			for (int i = mPending.size() - 1; i >= 0; i--) {
+				long key = mPending.keyAt(i);
+				int col = (int) (key >>> 24) & 0xFFFFFF;
+				int row = (int) key & 0xFFFFFF;
+				if ((int) (key >>> 48) != sampleSize || col < firstCol
+						|| col > lastCol || row < firstRow || row > lastRow) {
+					mPending.valueAt(i).cancel();
+					mPending.removeAt(i);
+				}
+			}
+		}
+	}
+
+	private void notifyListener() {
+		if (mListener != null) {
+			mListener.onTileLoaded();
+		}
+	}
+}
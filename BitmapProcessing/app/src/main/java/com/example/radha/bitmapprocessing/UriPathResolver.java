@@ -0,0 +1,257 @@
+package com.example.radha.bitmapprocessing;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves content uris to file paths through the {@code _data} column and
+ * remembers the answers, so binding a gallery grid does not query the media
+ * provider once per cell.
+ * <p>
+ * Only paths of the external images collection are remembered, as that is
+ * the collection watched for changes; a cached path is dropped when the
+ * media provider reports a change of its uri. Many uris of one media
+ * provider collection can be resolved with a single {@code _id IN (...)}
+ * query; uris of other providers are resolved one at a time.
+ */
+public class UriPathResolver {
+	/** Number of resolved uris remembered. */
+	private static final int CACHE_SIZE = 1024;
+
+	/** Stays well below the SQLite limit of 999 bound arguments. */
+	private static final int MAX_IDS_PER_QUERY = 500;
+
+	private static final String[] PROJECTION = { BaseColumns._ID,
+			MediaStore.Images.ImageColumns.DATA };
+
+	private static UriPathResolver sInstance;
+
+	private final ContentResolver mResolver;
+	/** Start of the uris the content observer reports changes of. */
+	private final String mObservedPrefix;
+	private final LruCache<String, String> mPaths = new LruCache<String, String>(
+			CACHE_SIZE);
+
+	private UriPathResolver(Context context) {
+		mResolver = context.getContentResolver();
+		mObservedPrefix = MediaStore.Images.Media.EXTERNAL_CONTENT_URI
+				.toString() + '/';
+		mResolver.registerContentObserver(
+				MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true,
+				new ContentObserver(null) {
+					@Override
+					public void onChange(boolean selfChange) {
+						mPaths.evictAll();
+					}
+
+					@Override
+					public void onChange(boolean selfChange, Uri uri) {
+						if (uri == null || parseId(uri) < 0) {
+							mPaths.evictAll();
+						} else {
+							mPaths.remove(uri.toString());
+						}
+					}
+				});
+	}
+
+	/**
+	 * Returns the shared resolver, watching the external images collection.
+	 */
+	public static synchronized UriPathResolver getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new UriPathResolver(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @return the shared resolver, or null when it has not been created yet
+	 */
+	static synchronized UriPathResolver peekInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * Resolves one uri. File uris are answered without a query, and only
+	 * uris of the watched images collection are cached.
+	 *
+	 * @return file path, or null when the provider does not know the uri or
+	 *         has no path for it
+	 */
+	public String resolve(Uri uri) {
+		if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+			return uri.getPath();
+		}
+		String key = uri.toString();
+		String path = mPaths.get(key);
+		if (path != null) {
+			return path;
+		}
+		Cursor cursor = mResolver.query(uri, PROJECTION, null, null, null);
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			int column = cursor
+					.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.DATA);
+			if (cursor.moveToFirst()) {
+				path = cursor.getString(column);
+			}
+		} finally {
+			cursor.close();
+		}
+		if (path != null && isObserved(key)) {
+			mPaths.put(key, path);
+		}
+		return path;
+	}
+
+	/**
+	 * Resolves many uris, e.g. the visible page of a grid. Media provider
+	 * uris that are not cached are grouped by their collection and looked
+	 * up with one query per group; other uris are resolved one at a time.
+	 *
+	 * @return paths by uri, in the order of the argument; uris that cannot
+	 *         be resolved are missing
+	 */
+	public Map<Uri, String> resolveAll(List<Uri> uris) {
+		Map<Uri, String> result = new LinkedHashMap<Uri, String>();
+		Map<String, List<Uri>> missingByCollection = new HashMap<String, List<Uri>>();
+		for (Uri uri : uris) {
+			String path = mPaths.get(uri.toString());
+			if (path != null) {
+				result.put(uri, path);
+				continue;
+			}
+			String collection = collectionOf(uri);
+			if (collection == null) {
+				path = resolve(uri);
+				if (path != null) {
+					result.put(uri, path);
+				}
+				continue;
+			}
+			List<Uri> missing = missingByCollection.get(collection);
+			if (missing == null) {
+				missing = new ArrayList<Uri>();
+				missingByCollection.put(collection, missing);
+			}
+			missing.add(uri);
+		}
+		for (Map.Entry<String, List<Uri>> entry : missingByCollection
+				.entrySet()) {
+			List<Uri> missing = entry.getValue();
+			for (int start = 0; start < missing.size(); start += MAX_IDS_PER_QUERY) {
+				queryIds(Uri.parse(entry.getKey()), missing.subList(start,
+						Math.min(missing.size(), start + MAX_IDS_PER_QUERY)),
+						result);
+			}
+		}
+		if (missingByCollection.isEmpty()) {
+			return result;
+		}
+		// restore the order of the argument
+		Map<Uri, String> ordered = new LinkedHashMap<Uri, String>();
+		for (Uri uri : uris) {
+			String path = result.get(uri);
+			if (path != null) {
+				ordered.put(uri, path);
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * Forgets every resolved path.
+	 */
+	public void clear() {
+		mPaths.evictAll();
+	}
+
+	private void queryIds(Uri collection, List<Uri> uris, Map<Uri, String> result) {
+		Map<Long, Uri> byId = new HashMap<Long, Uri>();
+		String[] args = new String[uris.size()];
+		StringBuilder selection = new StringBuilder(BaseColumns._ID)
+				.append(" IN (");
+		for (int i = 0; i < uris.size(); i++) {
+			Uri uri = uris.get(i);
+			long id = parseId(uri);
+			byId.put(id, uri);
+			args[i] = Long.toString(id);
+			selection.append(i == 0 ? "?" : ",?");
+		}
+		selection.append(')');
+		Cursor cursor = mResolver.query(collection, PROJECTION,
+				selection.toString(), args, null);
+		if (cursor == null) {
+			return;
+		}
+		try {
+			int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+			int dataColumn = cursor
+					.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.DATA);
+			while (cursor.moveToNext()) {
+				Uri uri = byId.get(cursor.getLong(idColumn));
+				String path = cursor.getString(dataColumn);
+				if (uri != null && path != null) {
+					String key = uri.toString();
+					if (isObserved(key)) {
+						mPaths.put(key, path);
+					}
+					result.put(uri, path);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return whether the content observer reports changes of the uri, so
+	 *         its path may be cached
+	 */
+	private boolean isObserved(String uri) {
+		return uri.startsWith(mObservedPrefix);
+	}
+
+	/**
+	 * @return the collection uri of a media provider item uri such as
+	 *         {@code content://media/external/images/media/42}, or null
+	 *         for other providers, whose uris need not name a row of a
+	 *         collection, and for uris that do not end in a row id
+	 */
+	private static String collectionOf(Uri uri) {
+		if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+				|| !MediaStore.AUTHORITY.equals(uri.getAuthority())
+				|| parseId(uri) < 0) {
+			return null;
+		}
+		String string = uri.toString();
+		return string.substring(0, string.lastIndexOf('/'));
+	}
+
+	private static long parseId(Uri uri) {
+		String last = uri.getLastPathSegment();
+		if (last == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(last);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.example.radha.bitmapprocessing.kernel;
+
+/**
+ * Lossless EXIF orientation fixes on ARGB {@code int[]} rows: quarter
+ * turns, half turns, mirrors and their combinations, without any
+ * filtering.
+ * <p>
+ * Orientations that swap width and height walk the source in 64x64 tiles,
+ * so both the rows read and the rows written stay in cache even for very
+ * large images. The others work in place. All kernels can run their rows in
+ * parallel strips, see {@link RowStrips}.
+ */
+public final class Orientation {
+	/** EXIF orientation values, as {@code ExifInterface.ORIENTATION_*}. */
+	public static final int NORMAL = 1;
+	public static final int FLIP_HORIZONTAL = 2;
+	public static final int ROTATE_180 = 3;
+	public static final int FLIP_VERTICAL = 4;
+	public static final int TRANSPOSE = 5;
+	public static final int ROTATE_90 = 6;
+	public static final int TRANSVERSE = 7;
+	public static final int ROTATE_270 = 8;
+
+	/** Edge of a tile; 64x64 ints are 16KB, which fits L1 on common cores. */
+	private static final int TILE = 64;
+
+	private Orientation() {
+	}
+
+	/**
+	 * @return whether the orientation swaps width and height
+	 */
+	public static boolean swapsSides(int orientation) {
+		return orientation >= TRANSPOSE && orientation <= ROTATE_270;
+	}
+
+	/**
+	 * Writes the upright image into {@code dst}, which is {@code height}
+	 * wide and {@code width} high for orientations that swap sides.
+	 *
+	 * @param src
+	 *            pixels as stored, row after row
+	 * @param width
+	 *            stored width
+	 * @param height
+	 *            stored height
+	 * @param orientation
+	 *            EXIF orientation of the stored pixels; unknown values are
+	 *            treated as {@link #NORMAL}
+	 * @param dst
+	 *            receives the upright pixels, must not be {@code src}
+	 * @param parallel
+	 *            whether to use every core
+	 */
+	public static void apply(int[] src, int width, int height,
+			int orientation, int[] dst, boolean parallel) {
+		int uprightHeight = swapsSides(orientation) ? width : height;
+		applyRows(src, width, height, orientation, dst, 0, uprightHeight,
+				parallel);
+	}
+
+	/**
+	 * Writes rows {@code [fromRow, toRow)} of the upright image into the
+	 * start of {@code dst}. Lets a caller fill a large upright bitmap strip
+	 * by strip through a small buffer.
+	 *
+	 * @see #apply
+	 */
+	public static void applyRows(final int[] src, final int width,
+			final int height, int orientation, final int[] dst,
+			final int fromRow, int toRow, boolean parallel) {
+		boolean swap = swapsSides(orientation);
+		final int dstWidth = swap ? height : width;
+		int dstHeight = swap ? width : height;
+		if (fromRow < 0 || toRow > dstHeight || fromRow > toRow) {
+			throw new IllegalArgumentException("Rows " + fromRow + "-"
+					+ toRow + " outside " + dstHeight);
+		}
+		if (src.length < width * height
+				|| dst.length < (toRow - fromRow) * dstWidth) {
+			throw new IllegalArgumentException("Pixel array too small");
+		}
+		// source index of upright (x, y) is base + x * stepX + y * stepY
+		final int last = width - 1;
+		final int bottom = (height - 1) * width;
+		final int base;
+		final int stepX;
+		final int stepY;
+		switch (orientation) {
+		case FLIP_HORIZONTAL:
+			base = last;
+			stepX = -1;
+			stepY = width;
+			break;
+		case ROTATE_180:
+			base = bottom + last;
+			stepX = -1;
+			stepY = -width;
+			break;
+		case FLIP_VERTICAL:
+			base = bottom;
+			stepX = 1;
+			stepY = -width;
+			break;
+		case TRANSPOSE:
+			base = 0;
+			stepX = width;
+			stepY = 1;
+			break;
+		case ROTATE_90:
+			base = bottom;
+			stepX = -width;
+			stepY = 1;
+			break;
+		case TRANSVERSE:
+			base = bottom + last;
+			stepX = -width;
+			stepY = -1;
+			break;
+		case ROTATE_270:
+			base = last;
+			stepX = width;
+			stepY = -1;
+			break;
+		default:
+			base = 0;
+			stepX = 1;
+			stepY = width;
+			break;
+		}
+		// rows run along the source rows unless the sides swap, then tile
+		final int tile = swap ? TILE : dstWidth;
+		int rows = toRow - fromRow;
+		int bands = (rows + TILE - 1) / TILE;
+		final int end = toRow;
+		RowStrips.Kernel kernel = new RowStrips.Kernel() {
+			@Override
+			public void rows(int from, int to) {
+				int yFrom = fromRow + from * TILE;
+				int yTo = Math.min(end, fromRow + to * TILE);
+				copyTiles(src, dst, dstWidth, fromRow, yFrom, yTo, tile,
+						base, stepX, stepY);
+			}
+		};
+		if (parallel) {
+			RowStrips.run(kernel, bands, (long) rows * dstWidth);
+		} else {
+			kernel.rows(0, bands);
+		}
+	}
+
+	/**
+	 * Fixes an orientation that keeps width and height, {@link #NORMAL} to
+	 * {@link #FLIP_VERTICAL}, without a second buffer.
+	 *
+	 * @throws IllegalArgumentException
+	 *             for orientations that swap sides
+	 */
+	public static void applyInPlace(final int[] pixels, final int width,
+			final int height, int orientation, boolean parallel) {
+		if (swapsSides(orientation)) {
+			throw new IllegalArgumentException("Orientation " + orientation
+					+ " swaps sides");
+		}
+		if (pixels.length < width * height) {
+			throw new IllegalArgumentException("Pixel array too small");
+		}
+		RowStrips.Kernel kernel;
+		int rows;
+		switch (orientation) {
+		case FLIP_HORIZONTAL:
+			rows = height;
+			kernel = new RowStrips.Kernel() {
+				@Override
+				public void rows(int from, int to) {
+					for (int y = from; y < to; y++) {
+						reverse(pixels, y * width, y * width + width - 1);
+					}
+				}
+			};
+			break;
+		case ROTATE_180:
+		case FLIP_VERTICAL:
+			final boolean mirror = orientation == ROTATE_180;
+			// pairs of rows from the top and the bottom; an odd middle row
+			// pairs with itself
+			rows = (height + 1) / 2;
+			kernel = new RowStrips.Kernel() {
+				@Override
+				public void rows(int from, int to) {
+					for (int y = from; y < to; y++) {
+						swapRows(pixels, width, y, height - 1 - y, mirror);
+					}
+				}
+			};
+			break;
+		default:
+			return;
+		}
+		if (parallel) {
+			RowStrips.run(kernel, rows, (long) width * height);
+		} else {
+			kernel.rows(0, rows);
+		}
+	}
+
+	/**
+	 * Copies upright rows {@code [yFrom, yTo)} tile by tile. The tile is
+	 * {@code tile} upright pixels wide, the band {@link #TILE} rows high.
+	 */
+	static void copyTiles(int[] src, int[] dst, int dstWidth, int firstRow,
+			int yFrom, int yTo, int tile, int base, int stepX, int stepY) {
+		for (int y0 = yFrom; y0 < yTo; y0 += TILE) {
+			int y1 = Math.min(yTo, y0 + TILE);
+			for (int x0 = 0; x0 < dstWidth; x0 += tile) {
+				int x1 = Math.min(dstWidth, x0 + tile);
+				for (int y = y0; y < y1; y++) {
+					int s = base + y * stepY + x0 * stepX;
+					int d = (y - firstRow) * dstWidth + x0;
+					for (int x = x0; x < x1; x++) {
+						dst[d++] = src[s];
+						s += stepX;
+					}
+				}
+			}
+		}
+	}
+
+	private static void reverse(int[] pixels, int from, int to) {
+		while (from < to) {
+			int t = pixels[from];
+			pixels[from++] = pixels[to];
+			pixels[to--] = t;
+		}
+	}
+
+	/**
+	 * Swaps two rows, reversing both when {@code mirror} is set. A row
+	 * swapped with itself is only reversed.
+	 */
+	private static void swapRows(int[] pixels, int width, int top,
+			int bottom, boolean mirror) {
+		int a = top * width;
+		int b = bottom * width;
+		if (top == bottom) {
+			if (mirror) {
+				reverse(pixels, a, a + width - 1);
+			}
+			return;
+		}
+		if (mirror) {
+			int bEnd = b + width - 1;
+			for (int i = 0; i < width; i++) {
+				int t = pixels[a + i];
+				pixels[a + i] = pixels[bEnd - i];
+				pixels[bEnd - i] = t;
+			}
+		} else {
+			for (int i = 0; i < width; i++) {
+				int t = pixels[a + i];
+				pixels[a + i] = pixels[b + i];
+				pixels[b + i] = t;
+			}
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package com.example.radha.bitmapprocessing.kernel;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 32 bit pixels held outside the Java heap, in a direct buffer or a memory
+ * mapped file, for images that can never fit in the heap as one bitmap,
+ * such as panoramas and scans.
+ * <p>
+ * Pixels are stored row after row in the byte layout of
+ * {@code Bitmap.copyPixelsToBuffer} for ARGB_8888, so a bitmap converts to
+ * and from a buffer with a single bulk copy of {@link #bytes()}. Rows are
+ * read and written in strips through {@code int[]}; each int holds the four
+ * channels of a pixel in native byte order. The kernels treat all channels
+ * alike, so the channel order does not matter to them.
+ * <p>
+ * {@link #crop}, {@link #scaleAreaAverage}, {@link #scaleBilinear} and
+ * {@link #orient} stream from one buffer into another strip by strip, so
+ * the heap only ever holds a strip of either image.
+ * <p>
+ * A buffer is indexed by int, so it holds at most {@link Integer#MAX_VALUE}
+ * bytes, about 536 million pixels; larger images must be split into tiles.
+ */
+public final class PixelBuffer implements Closeable {
+	public static final int BYTES_PER_PIXEL = 4;
+
+	/** Pixels per strip moved through the heap, 16MB. */
+	private static final int STRIP_PIXELS = 4 * 1024 * 1024;
+
+	private final int mWidth;
+	private final int mHeight;
+	private final ByteBuffer mBytes;
+	private final IntBuffer mInts;
+	private final RandomAccessFile mFile;
+	private final File mTempFile;
+
+	private PixelBuffer(int width, int height, ByteBuffer bytes,
+			RandomAccessFile file, File tempFile) {
+		mWidth = width;
+		mHeight = height;
+		mBytes = bytes;
+		mInts = bytes.duplicate().order(ByteOrder.nativeOrder()).asIntBuffer();
+		mFile = file;
+		mTempFile = tempFile;
+	}
+
+	/**
+	 * Allocates a buffer in native memory. It counts against the process
+	 * memory, not the Java heap.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the image needs more than {@link Integer#MAX_VALUE}
+	 *             bytes
+	 */
+	public static PixelBuffer allocateDirect(int width, int height) {
+		return new PixelBuffer(width, height,
+				ByteBuffer.allocateDirect(byteCount(width, height)), null, null);
+	}
+
+	/**
+	 * Maps a buffer onto a file, growing the file as needed. The pixels stay
+	 * in the file after {@link #close}, e.g. to resume work on a scan.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the image needs more than {@link Integer#MAX_VALUE}
+	 *             bytes
+	 */
+	public static PixelBuffer map(File file, int width, int height)
+			throws IOException {
+		return map(file, width, height, null);
+	}
+
+	/**
+	 * Maps a buffer onto a new temporary file that is deleted on
+	 * {@link #close}. The page cache holds the pixels, so the buffer can be
+	 * far larger than the heap.
+	 *
+	 * @param dir
+	 *            directory of the file, e.g. the cache dir; null for the
+	 *            default temporary directory
+	 * @throws IllegalArgumentException
+	 *             if the image needs more than {@link Integer#MAX_VALUE}
+	 *             bytes
+	 */
+	public static PixelBuffer mapTemp(File dir, int width, int height)
+			throws IOException {
+		byteCount(width, height);
+		File file = File.createTempFile("pixels", ".tmp", dir);
+		try {
+			return map(file, width, height, file);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+	}
+
+	private static PixelBuffer map(File file, int width, int height,
+			File tempFile) throws IOException {
+		int size = byteCount(width, height);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			ByteBuffer bytes = randomAccessFile.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			return new PixelBuffer(width, height, bytes, randomAccessFile,
+					tempFile);
+		} catch (IOException e) {
+			randomAccessFile.close();
+			throw e;
+		}
+	}
+
+	private static int byteCount(int width, int height) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Unsupported size " + width
+					+ "x" + height);
+		}
+		long size = (long) width * height * BYTES_PER_PIXEL;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(width + "x" + height
+					+ " needs " + size + " bytes, a pixel buffer holds at most "
+					+ Integer.MAX_VALUE);
+		}
+		return (int) size;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return all pixel bytes, positioned at the start, for
+	 *         {@code Bitmap.copyPixelsToBuffer} and
+	 *         {@code copyPixelsFromBuffer}
+	 */
+	public ByteBuffer bytes() {
+		return mBytes.duplicate();
+	}
+
+	/**
+	 * @return number of rows that make up a strip of at most 16MB
+	 */
+	public int stripRows() {
+		return stripRows(mWidth);
+	}
+
+	private static int stripRows(int width) {
+		return Math.max(1, STRIP_PIXELS / width);
+	}
+
+	/**
+	 * Reads rows {@code [from, to)} into the start of {@code dst}.
+	 */
+	public void readRows(int from, int to, int[] dst) {
+		readRect(0, from, mWidth, to - from, dst);
+	}
+
+	/**
+	 * Writes rows {@code [from, to)} from the start of {@code src}.
+	 */
+	public void writeRows(int from, int to, int[] src) {
+		checkRect(0, from, mWidth, to - from, src);
+		IntBuffer ints = mInts.duplicate();
+		ints.position(from * mWidth);
+		ints.put(src, 0, (to - from) * mWidth);
+	}
+
+	/**
+	 * Reads a rectangle into the start of {@code dst}, row after row.
+	 */
+	public void readRect(int x, int y, int width, int height, int[] dst) {
+		checkRect(x, y, width, height, dst);
+		IntBuffer ints = mInts.duplicate();
+		if (x == 0 && width == mWidth) {
+			ints.position(y * mWidth);
+			ints.get(dst, 0, width * height);
+			return;
+		}
+		for (int row = 0; row < height; row++) {
+			ints.position((y + row) * mWidth + x);
+			ints.get(dst, row * width, width);
+		}
+	}
+
+	/**
+	 * Copies a rectangle of this buffer into {@code dst}, which has the size
+	 * of the rectangle.
+	 */
+	public void crop(int x, int y, PixelBuffer dst) {
+		int width = dst.mWidth;
+		int stripRows = stripRows(width);
+		int[] strip = new int[Math.min(dst.mHeight, stripRows) * width];
+		for (int from = 0; from < dst.mHeight; from += stripRows) {
+			int to = Math.min(dst.mHeight, from + stripRows);
+			readRect(x, y + from, width, to - from, strip);
+			dst.writeRows(from, to, strip);
+		}
+	}
+
+	/**
+	 * Scales this buffer into {@code dst} with the area average of
+	 * {@link Resampler#scaleAreaAverage}, one output strip at a time.
+	 */
+	public void scaleAreaAverage(PixelBuffer dst) {
+		scale(dst, true);
+	}
+
+	/**
+	 * Scales this buffer into {@code dst} with the bilinear interpolation of
+	 * {@link Resampler#scaleBilinear}, one output strip at a time.
+	 */
+	public void scaleBilinear(PixelBuffer dst) {
+		scale(dst, false);
+	}
+
+	private void scale(PixelBuffer dst, final boolean areaAverage) {
+		final int srcWidth = mWidth;
+		final int srcHeight = mHeight;
+		final int dstWidth = dst.mWidth;
+		final int dstHeight = dst.mHeight;
+		// one output strip needs about as many source rows as the scale
+		// factor times its own rows, plus the rows filtered across
+		int dstStripRows = Math.max(1, Math.min(stripRows(dstWidth),
+				(int) ((long) stripRows(srcWidth) * dstHeight / srcHeight) - 2));
+		int[] dstStrip = new int[Math.min(dstHeight, dstStripRows) * dstWidth];
+		int[] srcStrip = null;
+		for (int from = 0; from < dstHeight; from += dstStripRows) {
+			final int stripFrom = from;
+			int to = Math.min(dstHeight, from + dstStripRows);
+			final int srcFrom = areaAverage ? Resampler.areaAverageFirstRow(
+					from, srcHeight, dstHeight) : Resampler.bilinearFirstRow(
+					from, srcHeight, dstHeight);
+			int srcTo = areaAverage ? Resampler.areaAverageEndRow(to,
+					srcHeight, dstHeight) : Resampler.bilinearEndRow(to,
+					srcHeight, dstHeight);
+			int srcSize = (srcTo - srcFrom) * srcWidth;
+			if (srcStrip == null || srcStrip.length < srcSize) {
+				srcStrip = new int[srcSize];
+			}
+			readRows(srcFrom, srcTo, srcStrip);
+			final int[] src = srcStrip;
+			final int[] out = dstStrip;
+			RowStrips.run(new RowStrips.Kernel() {
+				@Override
+				public void rows(int rowFrom, int rowTo) {
+					if (areaAverage) {
+						Resampler.areaAverageRows(src, srcWidth, srcHeight,
+								srcFrom, out, dstWidth, dstHeight, stripFrom,
+								stripFrom + rowFrom, stripFrom + rowTo);
+					} else {
+						Resampler.bilinearRows(src, srcWidth, srcHeight,
+								srcFrom, out, dstWidth, dstHeight, stripFrom,
+								stripFrom + rowFrom, stripFrom + rowTo);
+					}
+				}
+			}, to - from, (long) srcSize);
+			dst.writeRows(from, to, dstStrip);
+		}
+	}
+
+	/**
+	 * Turns this buffer upright into {@code dst} per an EXIF orientation,
+	 * see {@link Orientation}. Each output strip is produced from the band
+	 * of source rows or columns it comes from.
+	 *
+	 * @param dst
+	 *            buffer of the upright size, with width and height swapped
+	 *            for orientations that swap sides
+	 */
+	public void orient(int orientation, PixelBuffer dst) {
+		boolean swap = Orientation.swapsSides(orientation);
+		int dstWidth = dst.mWidth;
+		int dstHeight = dst.mHeight;
+		if (dstWidth != (swap ? mHeight : mWidth)
+				|| dstHeight != (swap ? mWidth : mHeight)) {
+			throw new IllegalArgumentException("Target is " + dstWidth + "x"
+					+ dstHeight);
+		}
+		// flipped vertically when the source band is taken from the end
+		boolean fromEnd = orientation == Orientation.ROTATE_180
+				|| orientation == Orientation.FLIP_VERTICAL
+				|| orientation == Orientation.TRANSVERSE
+				|| orientation == Orientation.ROTATE_270;
+		int stripRows = stripRows(swap ? mHeight : mWidth);
+		int[] band = new int[Math.min(dstHeight, stripRows)
+				* (swap ? mHeight : mWidth)];
+		int[] strip = new int[band.length];
+		for (int from = 0; from < dstHeight; from += stripRows) {
+			int to = Math.min(dstHeight, from + stripRows);
+			int count = to - from;
+			int first = fromEnd ? (swap ? mWidth : mHeight) - to : from;
+			if (swap) {
+				// output rows come from source columns
+				readRect(first, 0, count, mHeight, band);
+				Orientation.apply(band, count, mHeight, orientation, strip,
+						true);
+			} else {
+				readRect(0, first, mWidth, count, band);
+				Orientation.apply(band, mWidth, count, orientation, strip,
+						true);
+			}
+			dst.writeRows(from, to, strip);
+		}
+	}
+
+	/**
+	 * Closes the mapping's file; a temporary file is deleted. The buffer
+	 * must not be used afterwards.
+	 * <p>
+	 * There is no public way to unmap a file, so the mapping, and the disk
+	 * space of a deleted temporary file, are only released once the buffer
+	 * and every {@link #bytes()} duplicate of it are garbage collected. Drop
+	 * them right after closing.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mFile != null) {
+			mFile.close();
+		}
+		if (mTempFile != null) {
+			mTempFile.delete();
+		}
+	}
+
+	private void checkRect(int x, int y, int width, int height, int[] pixels) {
+		if (x < 0 || y < 0 || width < 0 || height < 0
+				|| x + width > mWidth || y + height > mHeight) {
+			throw new IllegalArgumentException("Rect " + x + "," + y + " "
+					+ width + "x" + height + " outside " + mWidth + "x"
+					+ mHeight);
+		}
+		if (pixels.length < width * height) {
+			throw new IllegalArgumentException("Pixel array too small");
+		}
+	}
+}
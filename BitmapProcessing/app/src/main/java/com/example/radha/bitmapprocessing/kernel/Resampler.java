@@ -0,0 +1,292 @@
+package com.example.radha.bitmapprocessing.kernel;
+
+/**
+ * Scales ARGB pixels held in {@code int[]} rows, as returned by
+ * {@code Bitmap.getPixels}. Free of android classes so the kernels run, and
+ * can be benchmarked, on a plain JVM.
+ * <p>
+ * The output rows are split into strips that run in parallel, see
+ * {@link RowStrips}. The inner loops use integer math only and allocate
+ * nothing. Channels are filtered independently, which is only right for
+ * premultiplied pixels: {@code Bitmap.getPixels} returns unpremultiplied
+ * ones, whose invisible colors would bleed into the edges of transparent
+ * areas, so {@link #premultiply} them before scaling and
+ * {@link #unpremultiply} the result.
+ */
+public final class Resampler {
+	/** Sub-pixel precision of the area average, 1/256 of a pixel. */
+	private static final int AREA_SHIFT = 8;
+	private static final int AREA_ONE = 1 << AREA_SHIFT;
+
+	private Resampler() {
+	}
+
+	/**
+	 * Scales by averaging every source pixel covered by an output pixel,
+	 * weighted by the covered fraction. Every source pixel contributes, so
+	 * large reductions do not alias; use it to shrink.
+	 *
+	 * @param src
+	 *            source pixels, row after row
+	 * @param srcWidth
+	 *            source width
+	 * @param srcHeight
+	 *            source height
+	 * @param dst
+	 *            receives the scaled pixels, row after row
+	 * @param dstWidth
+	 *            output width
+	 * @param dstHeight
+	 *            output height
+	 */
+	public static void scaleAreaAverage(final int[] src, final int srcWidth,
+			final int srcHeight, final int[] dst, final int dstWidth,
+			final int dstHeight) {
+		checkSizes(src, srcWidth, srcHeight, dst, dstWidth, dstHeight);
+		RowStrips.run(new RowStrips.Kernel() {
+			@Override
+			public void rows(int from, int to) {
+				areaAverageRows(src, srcWidth, srcHeight, 0, dst, dstWidth,
+						dstHeight, 0, from, to);
+			}
+		}, dstHeight, (long) srcWidth * srcHeight);
+	}
+
+	/**
+	 * Scales by interpolating the four source pixels around the center of
+	 * each output pixel. Cheaper than {@link #scaleAreaAverage} and smooth
+	 * for enlargements and reductions down to about half; below that it
+	 * skips source pixels and aliases.
+	 *
+	 * @see #scaleAreaAverage
+	 */
+	public static void scaleBilinear(final int[] src, final int srcWidth,
+			final int srcHeight, final int[] dst, final int dstWidth,
+			final int dstHeight) {
+		checkSizes(src, srcWidth, srcHeight, dst, dstWidth, dstHeight);
+		RowStrips.run(new RowStrips.Kernel() {
+			@Override
+			public void rows(int from, int to) {
+				bilinearRows(src, srcWidth, srcHeight, 0, dst, dstWidth,
+						dstHeight, 0, from, to);
+			}
+		}, dstHeight, (long) dstWidth * dstHeight);
+	}
+
+	/**
+	 * Multiplies the color channels of the first {@code count} pixels by
+	 * their alpha, in place.
+	 */
+	public static void premultiply(int[] pixels, int count) {
+		for (int i = 0; i < count; i++) {
+			int p = pixels[i];
+			int a = p >>> 24;
+			if (a == 0xFF) {
+				continue;
+			}
+			// x * a / 255, rounded
+			int r = ((p >> 16) & 0xFF) * a + 0x80;
+			int g = ((p >> 8) & 0xFF) * a + 0x80;
+			int b = (p & 0xFF) * a + 0x80;
+			pixels[i] = a << 24 | ((r + (r >> 8)) >> 8) << 16
+					| ((g + (g >> 8)) >> 8) << 8 | ((b + (b >> 8)) >> 8);
+		}
+	}
+
+	/**
+	 * Divides the color channels of the first {@code count} pixels by their
+	 * alpha, in place, undoing {@link #premultiply}. Fully transparent
+	 * pixels become 0.
+	 */
+	public static void unpremultiply(int[] pixels, int count) {
+		for (int i = 0; i < count; i++) {
+			int p = pixels[i];
+			int a = p >>> 24;
+			if (a == 0xFF) {
+				continue;
+			}
+			if (a == 0) {
+				pixels[i] = 0;
+				continue;
+			}
+			int half = a >> 1;
+			int r = Math.min(255, (((p >> 16) & 0xFF) * 255 + half) / a);
+			int g = Math.min(255, (((p >> 8) & 0xFF) * 255 + half) / a);
+			int b = Math.min(255, ((p & 0xFF) * 255 + half) / a);
+			pixels[i] = a << 24 | r << 16 | g << 8 | b;
+		}
+	}
+
+	/**
+	 * Area average of output rows {@code [from, to)}. {@code src} holds the
+	 * source from row {@code srcFirstRow} on and {@code dst} receives the
+	 * output from row {@code dstFirstRow} on, so strips of images that do
+	 * not fit in memory can be scaled one at a time.
+	 */
+	static void areaAverageRows(int[] src, int srcWidth, int srcHeight,
+			int srcFirstRow, int[] dst, int dstWidth, int dstHeight,
+			int dstFirstRow, int from, int to) {
+		for (int y = from; y < to; y++) {
+			// source span of the output row in 1/256 pixels
+			long yStart = areaStart(y, srcHeight, dstHeight);
+			long yEnd = areaEnd(y, srcHeight, dstHeight);
+			int sy0 = (int) (yStart >> AREA_SHIFT);
+			int sy1 = (int) ((yEnd - 1) >> AREA_SHIFT);
+			int dstRow = (y - dstFirstRow) * dstWidth;
+			for (int x = 0; x < dstWidth; x++) {
+				long xStart = areaStart(x, srcWidth, dstWidth);
+				long xEnd = areaEnd(x, srcWidth, dstWidth);
+				int sx0 = (int) (xStart >> AREA_SHIFT);
+				int sx1 = (int) ((xEnd - 1) >> AREA_SHIFT);
+				long a = 0, r = 0, g = 0, b = 0;
+				for (int sy = sy0; sy <= sy1; sy++) {
+					long top = (long) sy << AREA_SHIFT;
+					long wy = Math.min(yEnd, top + AREA_ONE)
+							- Math.max(yStart, top);
+					int srcRow = (sy - srcFirstRow) * srcWidth;
+					for (int sx = sx0; sx <= sx1; sx++) {
+						long left = (long) sx << AREA_SHIFT;
+						long w = wy
+								* (Math.min(xEnd, left + AREA_ONE) - Math.max(
+										xStart, left));
+						int p = src[srcRow + sx];
+						a += (p >>> 24) * w;
+						r += ((p >> 16) & 0xFF) * w;
+						g += ((p >> 8) & 0xFF) * w;
+						b += (p & 0xFF) * w;
+					}
+				}
+				long total = (xEnd - xStart) * (yEnd - yStart);
+				long half = total >> 1;
+				dst[dstRow + x] = (int) ((a + half) / total) << 24
+						| (int) ((r + half) / total) << 16
+						| (int) ((g + half) / total) << 8
+						| (int) ((b + half) / total);
+			}
+		}
+	}
+
+	/**
+	 * Bilinear scale of output rows {@code [from, to)} between strips, see
+	 * {@link #areaAverageRows}.
+	 */
+	static void bilinearRows(int[] src, int srcWidth, int srcHeight,
+			int srcFirstRow, int[] dst, int dstWidth, int dstHeight,
+			int dstFirstRow, int from, int to) {
+		// 16.16 fixed point, sampling at pixel centers
+		long xStep = ((long) srcWidth << 16) / dstWidth;
+		long yStep = ((long) srcHeight << 16) / dstHeight;
+		long maxX = (long) (srcWidth - 1) << 16;
+		long maxY = (long) (srcHeight - 1) << 16;
+		for (int y = from; y < to; y++) {
+			long fy = Math.max(0, Math.min(maxY, y * yStep + (yStep >> 1)
+					- 0x8000));
+			int y0 = (int) (fy >> 16);
+			int y1 = Math.min(y0 + 1, srcHeight - 1);
+			int wy = (int) (fy >> 8) & 0xFF;
+			int row0 = (y0 - srcFirstRow) * srcWidth;
+			int row1 = (y1 - srcFirstRow) * srcWidth;
+			int dstRow = (y - dstFirstRow) * dstWidth;
+			for (int x = 0; x < dstWidth; x++) {
+				long fx = Math.max(0, Math.min(maxX, x * xStep + (xStep >> 1)
+						- 0x8000));
+				int x0 = (int) (fx >> 16);
+				int x1 = Math.min(x0 + 1, srcWidth - 1);
+				int wx = (int) (fx >> 8) & 0xFF;
+				dst[dstRow + x] = blend(src[row0 + x0], src[row0 + x1],
+						src[row1 + x0], src[row1 + x1], wx, wy);
+			}
+		}
+	}
+
+	/**
+	 * @return start of the source span of output pixel {@code i} in 1/256
+	 *         pixels
+	 */
+	private static long areaStart(int i, int srcSize, int dstSize) {
+		return ((long) i * srcSize << AREA_SHIFT) / dstSize;
+	}
+
+	/**
+	 * @return end of the source span of output pixel {@code i} in 1/256
+	 *         pixels; spans are at least 1/256 long, as enlargements by
+	 *         more than 256 would otherwise leave some empty
+	 */
+	private static long areaEnd(int i, int srcSize, int dstSize) {
+		return Math.max(areaStart(i, srcSize, dstSize) + 1,
+				((long) (i + 1) * srcSize << AREA_SHIFT) / dstSize);
+	}
+
+	/**
+	 * @return first source row read by the area average of output rows from
+	 *         {@code from} on
+	 */
+	static int areaAverageFirstRow(int from, int srcHeight, int dstHeight) {
+		return (int) (areaStart(from, srcHeight, dstHeight) >> AREA_SHIFT);
+	}
+
+	/**
+	 * @return source row after the last one read by the area average of
+	 *         output rows before {@code to}
+	 */
+	static int areaAverageEndRow(int to, int srcHeight, int dstHeight) {
+		long end = areaEnd(to - 1, srcHeight, dstHeight);
+		return (int) ((end - 1) >> AREA_SHIFT) + 1;
+	}
+
+	/**
+	 * @return first source row read by the bilinear scale of output row
+	 *         {@code from}
+	 */
+	static int bilinearFirstRow(int from, int srcHeight, int dstHeight) {
+		long yStep = ((long) srcHeight << 16) / dstHeight;
+		long fy = Math.max(0, Math.min((long) (srcHeight - 1) << 16, from
+				* yStep + (yStep >> 1) - 0x8000));
+		return (int) (fy >> 16);
+	}
+
+	/**
+	 * @return source row after the last one read by the bilinear scale of
+	 *         output rows up to {@code to}
+	 */
+	static int bilinearEndRow(int to, int srcHeight, int dstHeight) {
+		return Math.min(srcHeight,
+				bilinearFirstRow(to - 1, srcHeight, dstHeight) + 2);
+	}
+
+	/**
+	 * Interpolates four pixels with weights in 1/256.
+	 */
+	private static int blend(int p00, int p01, int p10, int p11, int wx,
+			int wy) {
+		int ix = 256 - wx;
+		int iy = 256 - wy;
+		int w00 = ix * iy;
+		int w01 = wx * iy;
+		int w10 = ix * wy;
+		int w11 = wx * wy;
+		// weights add up to 65536, the 0x8000 rounds
+		int a = ((p00 >>> 24) * w00 + (p01 >>> 24) * w01 + (p10 >>> 24)
+				* w10 + (p11 >>> 24) * w11 + 0x8000) >>> 16;
+		int r = (((p00 >> 16) & 0xFF) * w00 + ((p01 >> 16) & 0xFF) * w01
+				+ ((p10 >> 16) & 0xFF) * w10 + ((p11 >> 16) & 0xFF) * w11 + 0x8000) >>> 16;
+		int g = (((p00 >> 8) & 0xFF) * w00 + ((p01 >> 8) & 0xFF) * w01
+				+ ((p10 >> 8) & 0xFF) * w10 + ((p11 >> 8) & 0xFF) * w11 + 0x8000) >>> 16;
+		int b = ((p00 & 0xFF) * w00 + (p01 & 0xFF) * w01 + (p10 & 0xFF)
+				* w10 + (p11 & 0xFF) * w11 + 0x8000) >>> 16;
+		return a << 24 | r << 16 | g << 8 | b;
+	}
+
+	static void checkSizes(int[] src, int srcWidth, int srcHeight,
+			int[] dst, int dstWidth, int dstHeight) {
+		if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0
+				|| dstHeight <= 0) {
+			throw new IllegalArgumentException("Empty image: " + srcWidth
+					+ "x" + srcHeight + " -> " + dstWidth + "x" + dstHeight);
+		}
+		if (src.length < srcWidth * srcHeight
+				|| dst.length < dstWidth * dstHeight) {
+			throw new IllegalArgumentException("Pixel array too small");
+		}
+	}
+}
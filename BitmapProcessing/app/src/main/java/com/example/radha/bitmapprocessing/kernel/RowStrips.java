@@ -0,0 +1,77 @@
+package com.example.radha.bitmapprocessing.kernel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the rows of an output image into strips and runs a kernel on them
+ * in parallel on a fork-join pool with one thread per core. Small images
+ * run on the calling thread, where forking costs more than it saves.
+ */
+final class RowStrips extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/** Below this many pixels of work a kernel runs serially. */
+	private static final long MIN_PARALLEL_PIXELS = 256 * 1024;
+
+	/** Strips per thread, so a slow strip does not leave cores idle. */
+	private static final int STRIPS_PER_THREAD = 4;
+
+	private static ForkJoinPool sPool;
+
+	/**
+	 * Work on a range of output rows. Strips never overlap, so a kernel
+	 * writing only its own rows needs no synchronization.
+	 */
+	interface Kernel {
+		void rows(int from, int to);
+	}
+
+	private final Kernel mKernel;
+	private final int mFrom;
+	private final int mTo;
+	private final int mMinRows;
+
+	private RowStrips(Kernel kernel, int from, int to, int minRows) {
+		mKernel = kernel;
+		mFrom = from;
+		mTo = to;
+		mMinRows = minRows;
+	}
+
+	/**
+	 * Runs the kernel over rows {@code [0, rows)}.
+	 *
+	 * @param work
+	 *            number of pixels the kernel touches in total, used to decide
+	 *            whether to go parallel
+	 */
+	static void run(Kernel kernel, int rows, long work) {
+		ForkJoinPool pool = pool();
+		int parallelism = pool.getParallelism();
+		if (parallelism == 1 || rows < 2 || work < MIN_PARALLEL_PIXELS) {
+			kernel.rows(0, rows);
+			return;
+		}
+		int minRows = Math.max(1, rows / (parallelism * STRIPS_PER_THREAD));
+		pool.invoke(new RowStrips(kernel, 0, rows, minRows));
+	}
+
+	private static synchronized ForkJoinPool pool() {
+		if (sPool == null) {
+			sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return sPool;
+	}
+
+	@Override
+	protected void compute() {
+		if (mTo - mFrom <= mMinRows) {
+			mKernel.rows(mFrom, mTo);
+			return;
+		}
+		int mid = (mFrom + mTo) >>> 1;
+		invokeAll(new RowStrips(mKernel, mFrom, mid, mMinRows),
+				new RowStrips(mKernel, mid, mTo, mMinRows));
+	}
+}
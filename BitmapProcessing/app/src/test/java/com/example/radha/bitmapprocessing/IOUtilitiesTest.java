@@ -0,0 +1,102 @@
+package com.example.radha.bitmapprocessing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class IOUtilitiesTest {
+
+	private static byte[] content(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	private static IOUtilities.Chunks read(byte[] data, long expectedLength)
+			throws IOException {
+		IOUtilities.Chunks chunks = new IOUtilities.Chunks();
+		IOUtilities.readAll(new ByteArrayInputStream(data), expectedLength,
+				chunks);
+		return chunks;
+	}
+
+	@Test
+	public void exactLengthStaysInPresizedArray() throws IOException {
+		byte[] data = content(100000);
+		IOUtilities.Chunks chunks = read(data, data.length);
+		try {
+			assertEquals(1, chunks.count());
+			assertArrayEquals(data, chunks.toArray());
+		} finally {
+			chunks.release();
+		}
+	}
+
+	@Test
+	public void emptyStreamOfExpectedLengthZero() throws IOException {
+		IOUtilities.Chunks chunks = read(new byte[0], 0);
+		try {
+			assertEquals(1, chunks.count());
+			assertEquals(0, chunks.toArray().length);
+		} finally {
+			chunks.release();
+		}
+	}
+
+	@Test
+	public void shorterStreamIsTruncated() throws IOException {
+		byte[] data = content(1000);
+		assertArrayEquals(data, IOUtilities.streamToByteArray(
+				new ByteArrayInputStream(data), 4000));
+	}
+
+	@Test
+	public void longerStreamKeepsEveryByte() throws IOException {
+		// one byte past the expected length, and past a whole pooled chunk
+		byte[] data = content(5001);
+		assertArrayEquals(data, IOUtilities.streamToByteArray(
+				new ByteArrayInputStream(data), 5000));
+		data = content(5000 + IOUtilities.POOLED_BUFFER_SIZE + 1);
+		assertArrayEquals(data, IOUtilities.streamToByteArray(
+				new ByteArrayInputStream(data), 5000));
+	}
+
+	@Test
+	public void unknownLength() throws IOException {
+		byte[] data = content(3 * IOUtilities.POOLED_BUFFER_SIZE);
+		assertArrayEquals(data, IOUtilities.streamToByteArray(
+				new ByteArrayInputStream(data)));
+		assertEquals(0, IOUtilities.streamToByteArray(
+				new ByteArrayInputStream(new byte[0])).length);
+	}
+
+	@Test
+	public void fileIsReadInOneArray() throws IOException {
+		byte[] data = content(70000);
+		File file = File.createTempFile("stream", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(data);
+			} finally {
+				IOUtilities.closeStream(out);
+			}
+			FileInputStream in = new FileInputStream(file);
+			try {
+				assertArrayEquals(data, IOUtilities.streamToByteArray(in));
+			} finally {
+				IOUtilities.closeStream(in);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.example.radha.bitmapprocessing.kernel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the tiled and in-place kernels against the EXIF orientations
+ * applied one pixel at a time.
+ */
+public class OrientationTest {
+	private static final int[][] SIZES = { { 1, 1 }, { 1, 9 }, { 9, 1 },
+			{ 3, 5 }, { 64, 64 }, { 65, 63 }, { 130, 70 }, { 700, 450 } };
+
+	private static int[] pixels(int count) {
+		int[] pixels = new int[count];
+		for (int i = 0; i < count; i++) {
+			pixels[i] = i;
+		}
+		return pixels;
+	}
+
+	/**
+	 * @return source index of upright pixel (x, y)
+	 */
+	private static int source(int orientation, int width, int height, int x,
+			int y) {
+		switch (orientation) {
+		case Orientation.FLIP_HORIZONTAL:
+			return y * width + width - 1 - x;
+		case Orientation.ROTATE_180:
+			return (height - 1 - y) * width + width - 1 - x;
+		case Orientation.FLIP_VERTICAL:
+			return (height - 1 - y) * width + x;
+		case Orientation.TRANSPOSE:
+			return x * width + y;
+		case Orientation.ROTATE_90:
+			return (height - 1 - x) * width + y;
+		case Orientation.TRANSVERSE:
+			return (height - 1 - x) * width + width - 1 - y;
+		case Orientation.ROTATE_270:
+			return x * width + width - 1 - y;
+		default:
+			return y * width + x;
+		}
+	}
+
+	private static int[] naive(int[] src, int width, int height,
+			int orientation) {
+		boolean swap = Orientation.swapsSides(orientation);
+		int uprightWidth = swap ? height : width;
+		int uprightHeight = swap ? width : height;
+		int[] dst = new int[width * height];
+		for (int y = 0; y < uprightHeight; y++) {
+			for (int x = 0; x < uprightWidth; x++) {
+				dst[y * uprightWidth + x] = src[source(orientation, width,
+						height, x, y)];
+			}
+		}
+		return dst;
+	}
+
+	@Test
+	public void applyMatchesReference() {
+		for (int[] size : SIZES) {
+			int[] src = pixels(size[0] * size[1]);
+			for (int orientation = Orientation.NORMAL; orientation <= Orientation.ROTATE_270; orientation++) {
+				int[] expected = naive(src, size[0], size[1], orientation);
+				int[] serial = new int[src.length];
+				Orientation.apply(src, size[0], size[1], orientation, serial,
+						false);
+				assertArrayEquals("orientation " + orientation + " of "
+						+ size[0] + "x" + size[1], expected, serial);
+				int[] parallel = new int[src.length];
+				Orientation.apply(src, size[0], size[1], orientation,
+						parallel, true);
+				assertArrayEquals(expected, parallel);
+			}
+		}
+	}
+
+	@Test
+	public void applyRowsWritesOneStrip() {
+		int width = 130, height = 70;
+		int[] src = pixels(width * height);
+		for (int orientation = Orientation.NORMAL; orientation <= Orientation.ROTATE_270; orientation++) {
+			int[] expected = naive(src, width, height, orientation);
+			int uprightWidth = Orientation.swapsSides(orientation) ? height
+					: width;
+			int[] strip = new int[uprightWidth * 50];
+			Orientation.applyRows(src, width, height, orientation, strip, 20,
+					70, false);
+			for (int i = 0; i < strip.length; i++) {
+				assertEquals(expected[20 * uprightWidth + i], strip[i]);
+			}
+		}
+	}
+
+	@Test
+	public void applyInPlaceMatchesReference() {
+		for (int[] size : SIZES) {
+			int[] src = pixels(size[0] * size[1]);
+			for (int orientation = Orientation.NORMAL; orientation <= Orientation.FLIP_VERTICAL; orientation++) {
+				int[] pixels = src.clone();
+				Orientation.applyInPlace(pixels, size[0], size[1],
+						orientation, true);
+				assertArrayEquals("orientation " + orientation + " of "
+						+ size[0] + "x" + size[1], naive(src, size[0],
+						size[1], orientation), pixels);
+			}
+		}
+	}
+}
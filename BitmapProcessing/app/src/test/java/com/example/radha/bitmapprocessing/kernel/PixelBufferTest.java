@@ -0,0 +1,153 @@
+package com.example.radha.bitmapprocessing.kernel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Checks the strip by strip transforms of off-heap buffers against the same
+ * kernels run on whole in-memory images. The large sizes span several 16MB
+ * strips, so rows filtered across a strip boundary are covered too.
+ */
+public class PixelBufferTest {
+	/** Source size of the multi-strip cases, 2 strips in either direction. */
+	private static final int LARGE_WIDTH = 2300;
+	private static final int LARGE_HEIGHT = 2100;
+
+	private static int[] pixels(int count, long seed) {
+		int[] pixels = new int[count];
+		Random random = new Random(seed);
+		for (int i = 0; i < count; i++) {
+			pixels[i] = random.nextInt();
+		}
+		return pixels;
+	}
+
+	private static PixelBuffer filled(int[] pixels, int width, int height) {
+		PixelBuffer buffer = PixelBuffer.allocateDirect(width, height);
+		buffer.writeRows(0, height, pixels);
+		return buffer;
+	}
+
+	private static int[] contents(PixelBuffer buffer) {
+		int[] pixels = new int[buffer.getWidth() * buffer.getHeight()];
+		buffer.readRows(0, buffer.getHeight(), pixels);
+		return pixels;
+	}
+
+	private static void assertScaled(int sw, int sh, int dw, int dh,
+			boolean areaAverage) throws IOException {
+		int[] src = pixels(sw * sh, sw * 31 + sh);
+		int[] expected = new int[dw * dh];
+		if (areaAverage) {
+			Resampler.scaleAreaAverage(src, sw, sh, expected, dw, dh);
+		} else {
+			Resampler.scaleBilinear(src, sw, sh, expected, dw, dh);
+		}
+		PixelBuffer source = filled(src, sw, sh);
+		PixelBuffer scaled = PixelBuffer.mapTemp(null, dw, dh);
+		try {
+			if (areaAverage) {
+				source.scaleAreaAverage(scaled);
+			} else {
+				source.scaleBilinear(scaled);
+			}
+			assertArrayEquals(sw + "x" + sh + " to " + dw + "x" + dh,
+					expected, contents(scaled));
+		} finally {
+			source.close();
+			scaled.close();
+		}
+	}
+
+	@Test
+	public void scaleAreaAverageMatchesInMemoryKernel() throws IOException {
+		assertScaled(17, 13, 5, 3, true);
+		assertScaled(5, 3, 17, 13, true);
+		assertScaled(LARGE_WIDTH, LARGE_HEIGHT, 1000, 1000, true);
+		assertScaled(100, 100, LARGE_WIDTH, LARGE_HEIGHT, true);
+	}
+
+	@Test
+	public void scaleBilinearMatchesInMemoryKernel() throws IOException {
+		assertScaled(17, 13, 5, 3, false);
+		assertScaled(5, 3, 17, 13, false);
+		assertScaled(LARGE_WIDTH, LARGE_HEIGHT, 1000, 1000, false);
+		assertScaled(100, 100, LARGE_WIDTH, LARGE_HEIGHT, false);
+	}
+
+	@Test
+	public void orientMatchesInMemoryKernel() throws IOException {
+		int[][] sizes = { { 7, 3 }, { LARGE_WIDTH, LARGE_HEIGHT } };
+		for (int[] size : sizes) {
+			int width = size[0];
+			int height = size[1];
+			int[] src = pixels(width * height, width);
+			PixelBuffer source = filled(src, width, height);
+			try {
+				for (int orientation = Orientation.NORMAL; orientation <= Orientation.ROTATE_270; orientation++) {
+					int[] expected = new int[src.length];
+					Orientation.apply(src, width, height, orientation,
+							expected, false);
+					boolean swap = Orientation.swapsSides(orientation);
+					PixelBuffer upright = PixelBuffer.allocateDirect(
+							swap ? height : width, swap ? width : height);
+					source.orient(orientation, upright);
+					assertArrayEquals("orientation " + orientation + " of "
+							+ width + "x" + height, expected,
+							contents(upright));
+				}
+			} finally {
+				source.close();
+			}
+		}
+	}
+
+	@Test
+	public void cropMatchesInMemoryCopy() throws IOException {
+		int width = LARGE_WIDTH;
+		int height = LARGE_HEIGHT;
+		int[] src = pixels(width * height, 7);
+		int x = 60, y = 50, cropWidth = 2200, cropHeight = 2000;
+		int[] expected = new int[cropWidth * cropHeight];
+		for (int row = 0; row < cropHeight; row++) {
+			System.arraycopy(src, (y + row) * width + x, expected, row
+					* cropWidth, cropWidth);
+		}
+		PixelBuffer source = filled(src, width, height);
+		PixelBuffer cropped = PixelBuffer.allocateDirect(cropWidth,
+				cropHeight);
+		try {
+			source.crop(x, y, cropped);
+			assertArrayEquals(expected, contents(cropped));
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	public void rejectsImagesOverTwoGigabytes() throws IOException {
+		try {
+			PixelBuffer.allocateDirect(32768, 16384);
+			fail("allocated 2GB");
+		} catch (IllegalArgumentException expected) {
+			// too large for an int indexed buffer
+		}
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"pixel-buffer-test");
+		dir.mkdirs();
+		try {
+			PixelBuffer.mapTemp(dir, 32768, 16384);
+			fail("mapped 2GB");
+		} catch (IllegalArgumentException expected) {
+			assertArrayEquals(new String[0], dir.list());
+		} finally {
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.example.radha.bitmapprocessing.kernel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks the fixed point kernels against straightforward floating point
+ * versions of the same filters.
+ */
+public class ResamplerTest {
+	private static final int[][] SIZES = { { 1, 1 }, { 1, 7 }, { 7, 1 },
+			{ 5, 3 }, { 17, 13 }, { 64, 48 }, { 101, 67 } };
+
+	private static int[] pixels(int count, long seed) {
+		int[] pixels = new int[count];
+		Random random = new Random(seed);
+		for (int i = 0; i < count; i++) {
+			pixels[i] = random.nextInt();
+		}
+		return pixels;
+	}
+
+	private static int channel(int pixel, int shift) {
+		return (pixel >>> shift) & 0xFF;
+	}
+
+	private static void assertClose(String what, int expected, int actual,
+			int tolerance) {
+		for (int shift = 0; shift < 32; shift += 8) {
+			int difference = Math.abs(channel(expected, shift)
+					- channel(actual, shift));
+			assertTrue(what + ": expected " + Integer.toHexString(expected)
+					+ " but was " + Integer.toHexString(actual),
+					difference <= tolerance);
+		}
+	}
+
+	/** Span edge of an output pixel, at the 1/256 pixel the kernel uses. */
+	private static double edge(int i, int srcSize, int dstSize) {
+		return Math.floor(256d * i * srcSize / dstSize) / 256;
+	}
+
+	private static int[] naiveAreaAverage(int[] src, int sw, int sh, int dw,
+			int dh) {
+		int[] dst = new int[dw * dh];
+		for (int y = 0; y < dh; y++) {
+			double y0 = edge(y, sh, dh);
+			double y1 = Math.max(y0 + 1d / 256, edge(y + 1, sh, dh));
+			for (int x = 0; x < dw; x++) {
+				double x0 = edge(x, sw, dw);
+				double x1 = Math.max(x0 + 1d / 256, edge(x + 1, sw, dw));
+				double[] sum = new double[4];
+				for (int sy = (int) y0; sy < Math.ceil(y1); sy++) {
+					double wy = Math.min(y1, sy + 1) - Math.max(y0, sy);
+					for (int sx = (int) x0; sx < Math.ceil(x1); sx++) {
+						double w = wy
+								* (Math.min(x1, sx + 1) - Math.max(x0, sx));
+						for (int c = 0; c < 4; c++) {
+							sum[c] += channel(src[sy * sw + sx], c * 8) * w;
+						}
+					}
+				}
+				double area = (x1 - x0) * (y1 - y0);
+				int pixel = 0;
+				for (int c = 0; c < 4; c++) {
+					pixel |= (int) Math.round(sum[c] / area) << (c * 8);
+				}
+				dst[y * dw + x] = pixel;
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * The kernel steps through the source in 1/65536 pixels, so its sample
+	 * positions drift by up to a pixel per 65536 output pixels, on top of
+	 * weights quantized to 1/256.
+	 */
+	private static int bilinearTolerance(int dstWidth, int dstHeight) {
+		return 2 + (255 * Math.max(dstWidth, dstHeight) + 65535) / 65536;
+	}
+
+	private static int[] naiveBilinear(int[] src, int sw, int sh, int dw,
+			int dh) {
+		int[] dst = new int[dw * dh];
+		for (int y = 0; y < dh; y++) {
+			double fy = Math.max(0, Math.min(sh - 1, (y + 0.5) * sh / dh
+					- 0.5));
+			int y0 = (int) fy;
+			int y1 = Math.min(y0 + 1, sh - 1);
+			double wy = fy - y0;
+			for (int x = 0; x < dw; x++) {
+				double fx = Math.max(0, Math.min(sw - 1, (x + 0.5) * sw / dw
+						- 0.5));
+				int x0 = (int) fx;
+				int x1 = Math.min(x0 + 1, sw - 1);
+				double wx = fx - x0;
+				int pixel = 0;
+				for (int c = 0; c < 32; c += 8) {
+					double top = channel(src[y0 * sw + x0], c) * (1 - wx)
+							+ channel(src[y0 * sw + x1], c) * wx;
+					double bottom = channel(src[y1 * sw + x0], c) * (1 - wx)
+							+ channel(src[y1 * sw + x1], c) * wx;
+					pixel |= (int) Math.round(top * (1 - wy) + bottom * wy) << c;
+				}
+				dst[y * dw + x] = pixel;
+			}
+		}
+		return dst;
+	}
+
+	@Test
+	public void areaAverageMatchesReference() {
+		for (int[] from : SIZES) {
+			for (int[] to : SIZES) {
+				int[] src = pixels(from[0] * from[1], from[0] * 31 + from[1]);
+				int[] dst = new int[to[0] * to[1]];
+				Resampler.scaleAreaAverage(src, from[0], from[1], dst, to[0],
+						to[1]);
+				int[] expected = naiveAreaAverage(src, from[0], from[1],
+						to[0], to[1]);
+				for (int i = 0; i < dst.length; i++) {
+					assertClose("area " + from[0] + "x" + from[1] + " -> "
+							+ to[0] + "x" + to[1] + " at " + i, expected[i],
+							dst[i], 2);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void bilinearMatchesReference() {
+		for (int[] from : SIZES) {
+			for (int[] to : SIZES) {
+				int[] src = pixels(from[0] * from[1], from[0] * 37 + from[1]);
+				int[] dst = new int[to[0] * to[1]];
+				Resampler.scaleBilinear(src, from[0], from[1], dst, to[0],
+						to[1]);
+				int[] expected = naiveBilinear(src, from[0], from[1], to[0],
+						to[1]);
+				for (int i = 0; i < dst.length; i++) {
+					assertClose("bilinear " + from[0] + "x" + from[1]
+							+ " -> " + to[0] + "x" + to[1] + " at " + i,
+							expected[i], dst[i], bilinearTolerance(to[0],
+									to[1]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void parallelStripsMatchReference() {
+		// large enough to be split into strips on a multi-core machine
+		int sw = 733, sh = 517, dw = 301, dh = 211;
+		int[] src = pixels(sw * sh, 7);
+		int[] dst = new int[dw * dh];
+		Resampler.scaleAreaAverage(src, sw, sh, dst, dw, dh);
+		int[] expected = naiveAreaAverage(src, sw, sh, dw, dh);
+		for (int i = 0; i < dst.length; i++) {
+			assertClose("area at " + i, expected[i], dst[i], 2);
+		}
+		dst = new int[sw * sh];
+		int[] bigger = pixels(dw * dh, 11);
+		Resampler.scaleBilinear(bigger, dw, dh, dst, sw, sh);
+		expected = naiveBilinear(bigger, dw, dh, sw, sh);
+		for (int i = 0; i < dst.length; i++) {
+			assertClose("bilinear at " + i, expected[i], dst[i],
+					bilinearTolerance(sw, sh));
+		}
+	}
+
+	@Test
+	public void areaAverageEnlargesBeyondItsPrecision() {
+		// more than 256 output pixels per source pixel leave spans shorter
+		// than the 1/256 pixel the kernel measures in
+		int[][][] cases = { { { 1, 1 }, { 300, 1 } }, { { 1, 1 }, { 1, 300 } },
+				{ { 2, 3 }, { 700, 800 } } };
+		for (int[][] scale : cases) {
+			int[] from = scale[0];
+			int[] to = scale[1];
+			int[] src = pixels(from[0] * from[1], 13);
+			int[] dst = new int[to[0] * to[1]];
+			Resampler.scaleAreaAverage(src, from[0], from[1], dst, to[0],
+					to[1]);
+			int[] expected = naiveAreaAverage(src, from[0], from[1], to[0],
+					to[1]);
+			for (int i = 0; i < dst.length; i++) {
+				assertClose("area " + from[0] + "x" + from[1] + " -> "
+						+ to[0] + "x" + to[1] + " at " + i, expected[i],
+						dst[i], 2);
+			}
+		}
+	}
+
+	@Test
+	public void solidColorStaysSolid() {
+		int[] src = new int[37 * 23];
+		java.util.Arrays.fill(src, 0x80C04020);
+		int[] dst = new int[10 * 9];
+		Resampler.scaleAreaAverage(src, 37, 23, dst, 10, 9);
+		for (int pixel : dst) {
+			assertEquals(0x80C04020, pixel);
+		}
+		Resampler.scaleBilinear(src, 37, 23, dst, 10, 9);
+		for (int pixel : dst) {
+			assertEquals(0x80C04020, pixel);
+		}
+	}
+
+	@Test
+	public void transparentColorsDoNotBleed() {
+		// opaque red next to transparent green, as getPixels returns them
+		int[] src = { 0xFFFF0000, 0x0000FF00 };
+		Resampler.premultiply(src, src.length);
+		int[] dst = new int[1];
+		Resampler.scaleAreaAverage(src, 2, 1, dst, 1, 1);
+		Resampler.unpremultiply(dst, dst.length);
+		assertEquals(0x80FF0000, dst[0]);
+	}
+
+	@Test
+	public void premultiplyMatchesReference() {
+		int[] pixels = pixels(4096, 3);
+		int[] premultiplied = pixels.clone();
+		Resampler.premultiply(premultiplied, premultiplied.length);
+		for (int i = 0; i < pixels.length; i++) {
+			int a = pixels[i] >>> 24;
+			int expected = a << 24;
+			for (int shift = 0; shift < 24; shift += 8) {
+				expected |= (int) Math.round(channel(pixels[i], shift) * a
+						/ 255d) << shift;
+			}
+			assertEquals(expected, premultiplied[i]);
+		}
+	}
+
+	@Test
+	public void unpremultiplyRestoresColors() {
+		int[] pixels = pixels(4096, 5);
+		int[] restored = pixels.clone();
+		Resampler.premultiply(restored, restored.length);
+		Resampler.unpremultiply(restored, restored.length);
+		for (int i = 0; i < pixels.length; i++) {
+			int a = pixels[i] >>> 24;
+			if (a == 0) {
+				assertEquals(0, restored[i]);
+				continue;
+			}
+			// premultiplying keeps about log2(a) bits of each channel
+			assertClose("pixel " + i, pixels[i], restored[i],
+					(255 + a) / (2 * a) + 1);
+		}
+		int[] opaque = { 0xFF123456, 0xFFFFFFFF, 0xFF000000 };
+		int[] copy = opaque.clone();
+		Resampler.premultiply(copy, copy.length);
+		Resampler.unpremultiply(copy, copy.length);
+		assertEquals(opaque[0], copy[0]);
+		assertEquals(opaque[1], copy[1]);
+		assertEquals(opaque[2], copy[2]);
+	}
+}
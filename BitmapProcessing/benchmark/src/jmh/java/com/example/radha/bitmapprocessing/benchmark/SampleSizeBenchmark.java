@@ -0,0 +1,62 @@
+package com.example.radha.bitmapprocessing.benchmark;
+
+import com.example.radha.bitmapprocessing.ImageMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sample size selection for camera sized images against a 1080x1920
+ * screen.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SampleSizeBenchmark {
+	private static final int SCREEN_WIDTH = 1080;
+	private static final int SCREEN_HEIGHT = 1920;
+
+	/** 12MP, 48MP and 108MP sensors. */
+	@Param({ "4000x3000", "8000x6000", "12000x9000" })
+	public String dimensions;
+
+	/** EXIF orientation, 1 upright and 6 rotated by 90 degrees. */
+	@Param({ "1", "6" })
+	public int orientation;
+
+	private int mWidth;
+	private int mHeight;
+
+	@Setup
+	public void setUp() {
+		String[] parts = dimensions.split("x");
+		mWidth = Integer.parseInt(parts[0]);
+		mHeight = Integer.parseInt(parts[1]);
+	}
+
+	@Benchmark
+	public int calculateInSampleSize() {
+		return ImageMath.calculateInSampleSize(mWidth, mHeight, SCREEN_WIDTH,
+				SCREEN_HEIGHT, orientation);
+	}
+
+	@Benchmark
+	public int powerOfTwoSampleSize() {
+		return ImageMath.powerOfTwoSampleSize(mWidth, mHeight, SCREEN_WIDTH,
+				SCREEN_HEIGHT);
+	}
+}
@@ -0,0 +1,162 @@
+package com.example.radha.bitmapprocessing.benchmark;
+
+import com.example.radha.bitmapprocessing.IOUtilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream helpers of {@link IOUtilities} over inputs from 1KB to 50MB, in
+ * memory and from a file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StreamBenchmark {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Param({ "1024", "65536", "1048576", "10485760", "52428800" })
+	public int size;
+
+	private byte[] mBinary;
+	private byte[] mText;
+	private File mSource;
+	private File mTarget;
+
+	@Setup
+	public void setUp() throws IOException {
+		mBinary = new byte[size];
+		new Random(42).nextBytes(mBinary);
+		mText = jsonLines(size);
+
+		mSource = File.createTempFile("bench-src", ".bin");
+		mTarget = File.createTempFile("bench-dst", ".bin");
+		OutputStream out = new FileOutputStream(mSource);
+		try {
+			out.write(mBinary);
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mSource.delete();
+		mTarget.delete();
+	}
+
+	/**
+	 * Metadata-like text: short JSON records, one per line.
+	 */
+	private static byte[] jsonLines(int size) {
+		StringBuilder sb = new StringBuilder(size + 128);
+		int i = 0;
+		while (sb.length() < size) {
+			sb.append("{\"id\":").append(i++)
+					.append(",\"tag\":\"xmp:Rating\",\"value\":\"")
+					.append(i % 5).append("\"}\n");
+		}
+		sb.setLength(size);
+		return sb.toString().getBytes(UTF_8);
+	}
+
+	@Benchmark
+	public long copyMemory() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		IOUtilities.copy(new ByteArrayInputStream(mBinary), out);
+		return out.count;
+	}
+
+	@Benchmark
+	public long copyFile() throws IOException {
+		InputStream in = new FileInputStream(mSource);
+		OutputStream out = new FileOutputStream(mTarget);
+		try {
+			IOUtilities.copy(in, out);
+		} finally {
+			in.close();
+			out.close();
+		}
+		return mTarget.length();
+	}
+
+	@Benchmark
+	public byte[] streamToByteArrayMemory() {
+		return IOUtilities.streamToByteArray(new ByteArrayInputStream(mBinary));
+	}
+
+	@Benchmark
+	public byte[] streamToByteArrayFile() throws IOException {
+		InputStream in = new FileInputStream(mSource);
+		try {
+			return IOUtilities.streamToByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer streamToByteBufferMemory() throws IOException {
+		return IOUtilities.streamToByteBuffer(
+				new ByteArrayInputStream(mBinary), false);
+	}
+
+	@Benchmark
+	public ByteBuffer streamToByteBufferFile() throws IOException {
+		InputStream in = new FileInputStream(mSource);
+		try {
+			return IOUtilities.streamToByteBuffer(in, false);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public String streamToString() {
+		return IOUtilities.streamToString(new ByteArrayInputStream(mText),
+				UTF_8);
+	}
+
+	/**
+	 * Discards everything written to it but counts the bytes, so the copy
+	 * cannot be optimized away.
+	 */
+	static final class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package com.example.radha.bitmapprocessing.benchmark;
+
+import com.example.radha.bitmapprocessing.kernel.Orientation;
+import com.example.radha.bitmapprocessing.kernel.Resampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pure Java equivalents of the pixel work behind the scale and rotate
+ * methods of {@code BitmapUtil}, on ARGB {@code int[]} buffers of camera
+ * sized images. They give a JVM baseline for the native
+ * {@code createScaledBitmap(..., false)} and {@code createBitmap(...,
+ * matrix, true)} paths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TransformBenchmark {
+	/** Target width of the scale, as for a 1080p screen. */
+	private static final int SCREEN_WIDTH = 1080;
+
+	/** 12MP, 48MP and 108MP sensors. */
+	@Param({ "4000x3000", "8000x6000", "12000x9000" })
+	public String dimensions;
+
+	private int mWidth;
+	private int mHeight;
+	private int mScaledWidth;
+	private int mScaledHeight;
+	private int[] mSource;
+	private int[] mScaled;
+	private int[] mRotated;
+
+	@Setup
+	public void setUp() {
+		String[] parts = dimensions.split("x");
+		mWidth = Integer.parseInt(parts[0]);
+		mHeight = Integer.parseInt(parts[1]);
+		// same factor as scaleToFitWidth
+		float factor = SCREEN_WIDTH / (float) mWidth;
+		mScaledWidth = SCREEN_WIDTH;
+		mScaledHeight = (int) (mHeight * factor);
+
+		mSource = new int[mWidth * mHeight];
+		Random random = new Random(42);
+		for (int i = 0; i < mSource.length; i++) {
+			mSource[i] = random.nextInt() | 0xFF000000;
+		}
+		mScaled = new int[mScaledWidth * mScaledHeight];
+		mRotated = new int[mSource.length];
+	}
+
+	/**
+	 * Nearest neighbour scale, as {@code createScaledBitmap} without
+	 * filtering.
+	 */
+	@Benchmark
+	public int[] scaleNearest() {
+		int[] src = mSource;
+		int[] dst = mScaled;
+		int srcWidth = mWidth;
+		int dstWidth = mScaledWidth;
+		// 16.16 fixed point steps
+		int xStep = (srcWidth << 16) / dstWidth;
+		int yStep = (mHeight << 16) / mScaledHeight;
+		int sy = 0;
+		for (int y = 0; y < mScaledHeight; y++) {
+			int srcRow = (sy >> 16) * srcWidth;
+			int dstRow = y * dstWidth;
+			int sx = 0;
+			for (int x = 0; x < dstWidth; x++) {
+				dst[dstRow + x] = src[srcRow + (sx >> 16)];
+				sx += xStep;
+			}
+			sy += yStep;
+		}
+		return dst;
+	}
+
+	/**
+	 * Bilinear scale, as {@code createScaledBitmap} with filtering.
+	 */
+	@Benchmark
+	public int[] scaleBilinear() {
+		int[] src = mSource;
+		int[] dst = mScaled;
+		int srcWidth = mWidth;
+		int srcHeight = mHeight;
+		int dstWidth = mScaledWidth;
+		float xRatio = (srcWidth - 1) / (float) dstWidth;
+		float yRatio = (srcHeight - 1) / (float) mScaledHeight;
+		for (int y = 0; y < mScaledHeight; y++) {
+			float fy = y * yRatio;
+			int y0 = (int) fy;
+			int wy = (int) ((fy - y0) * 256);
+			int row0 = y0 * srcWidth;
+			int row1 = row0 + srcWidth;
+			int dstRow = y * dstWidth;
+			for (int x = 0; x < dstWidth; x++) {
+				float fx = x * xRatio;
+				int x0 = (int) fx;
+				int wx = (int) ((fx - x0) * 256);
+				dst[dstRow + x] = blend(src[row0 + x0], src[row0 + x0 + 1],
+						src[row1 + x0], src[row1 + x0 + 1], wx, wy);
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * Parallel bilinear kernel behind {@code SCALE_BILINEAR}.
+	 */
+	@Benchmark
+	public int[] scaleBilinearKernel() {
+		Resampler.scaleBilinear(mSource, mWidth, mHeight, mScaled,
+				mScaledWidth, mScaledHeight);
+		return mScaled;
+	}
+
+	/**
+	 * Parallel area average kernel behind {@code SCALE_AREA_AVERAGE}.
+	 */
+	@Benchmark
+	public int[] scaleAreaAverageKernel() {
+		Resampler.scaleAreaAverage(mSource, mWidth, mHeight, mScaled,
+				mScaledWidth, mScaledHeight);
+		return mScaled;
+	}
+
+	private static int blend(int p00, int p01, int p10, int p11, int wx,
+			int wy) {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			int c00 = (p00 >>> shift) & 0xFF;
+			int c01 = (p01 >>> shift) & 0xFF;
+			int c10 = (p10 >>> shift) & 0xFF;
+			int c11 = (p11 >>> shift) & 0xFF;
+			int top = c00 * (256 - wx) + c01 * wx;
+			int bottom = c10 * (256 - wx) + c11 * wx;
+			int c = (top * (256 - wy) + bottom * wy) >>> 16;
+			result |= c << shift;
+		}
+		return result;
+	}
+
+	/**
+	 * Naive 90 degree clockwise rotation, the work done by
+	 * {@code rotateImage} for EXIF orientation 6.
+	 */
+	@Benchmark
+	public int[] rotate90() {
+		int[] src = mSource;
+		int[] dst = mRotated;
+		int width = mWidth;
+		int height = mHeight;
+		for (int y = 0; y < height; y++) {
+			int srcRow = y * width;
+			int dstCol = height - 1 - y;
+			for (int x = 0; x < width; x++) {
+				dst[x * height + dstCol] = src[srcRow + x];
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * 180 degree rotation, orientation 3.
+	 */
+	@Benchmark
+	public int[] rotate180() {
+		int[] src = mSource;
+		int[] dst = mRotated;
+		int last = src.length - 1;
+		for (int i = 0; i <= last; i++) {
+			dst[last - i] = src[i];
+		}
+		return dst;
+	}
+
+	/**
+	 * Cache-blocked 90 degree rotation behind orientation 6.
+	 */
+	@Benchmark
+	public int[] rotate90Kernel() {
+		Orientation.apply(mSource, mWidth, mHeight, Orientation.ROTATE_90,
+				mRotated, true);
+		return mRotated;
+	}
+
+	/**
+	 * In place 180 degree rotation behind orientation 3. Every call turns
+	 * the source over, which does not change the work done.
+	 */
+	@Benchmark
+	public int[] rotate180InPlaceKernel() {
+		Orientation.applyInPlace(mSource, mWidth, mHeight,
+				Orientation.ROTATE_180, true);
+		return mSource;
+	}
+}